@@ -0,0 +1,152 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Remembers the SHA-256 of every artifact, keyed by its path, size, mtime and
+ * inode, and which archive was built from which set of artifacts. A build
+ * whose inputs haven't changed can then reuse the archive it made last time
+ * without reading the artifacts at all. It also remembers which artifacts
+ * each component is built from, so files that no component uses any more
+ * are forgotten.
+ */
+public class ArtifactCache {
+    private static final ConcurrentHashMap<Path, ArtifactCache> caches = new ConcurrentHashMap<>();
+    private static final String FORMAT = "1";
+    private final Path file;
+    private final Properties entries = new Properties();
+    private boolean dirty = false;
+    public static ArtifactCache of(Path genTemplateDir) {
+        return caches.computeIfAbsent(genTemplateDir.toAbsolutePath(),
+                d -> new ArtifactCache(d.resolve(".cache").resolve("artifacts.properties")));
+    }
+    ArtifactCache(Path f) {
+        file = f;
+        try (Reader in = Files.newBufferedReader(file)) {
+            entries.load(in);
+            if (!FORMAT.equals(entries.getProperty("format")))
+                entries.clear();
+        } catch (IOException ioe) {
+        }
+    }
+    /**
+     * The SHA-256 of a file's contents. Only reads the file if its size,
+     * mtime or inode changed since it was last hashed.
+     */
+    public String digest(Path p) throws IOException {
+        String key = "f." + p.toAbsolutePath().normalize();
+        String stamp = stamp(p);
+        synchronized (this) {
+            String v = entries.getProperty(key);
+            if (v != null && v.startsWith(stamp))
+                return v.substring(stamp.length());
+        }
+        String d = hash(p);
+        synchronized (this) {
+            entries.setProperty(key, stamp + d);
+            dirty = true;
+        }
+        return d;
+    }
+    /**
+     * Note the artifacts that a component is now built from. When that
+     * changes, the hashes of files that aren't an input of any component
+     * any more are dropped.
+     */
+    public synchronized void inputs(String component, List<Path> sources) {
+        String v = sources.stream().map(p -> p.toAbsolutePath().normalize().toString())
+                .collect(Collectors.joining("\n"));
+        if (v.equals(entries.setProperty("c." + component, v))) return;
+        dirty = true;
+        Set<String> live = new HashSet<>();
+        for (String k : entries.stringPropertyNames())
+            if (k.startsWith("c."))
+                for (String f : entries.getProperty(k).split("\n"))
+                    live.add("f." + f);
+        entries.keySet().removeIf(k -> ((String) k).startsWith("f.") && !live.contains(k));
+    }
+    /**
+     * A key that identifies an archive by everything that affects its bytes:
+     * the names and contents of the entries, in order, and how they are
+     * compressed.
+     */
+    public String archiveKey(List<Path> sources, boolean storeOnly) throws IOException {
+        List<String> digests;
+        try {
+            digests = sources.parallelStream().map(p -> {
+                try {
+                    return digest(p);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }).collect(Collectors.toList());
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        MessageDigest md = sha256();
+        md.update(("zip " + FORMAT + ' ' + storeOnly + '\n')
+                .getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < sources.size(); i++)
+            md.update((sources.get(i).getFileName() + "\0" + digests.get(i) + '\n')
+                    .getBytes(StandardCharsets.UTF_8));
+        return TemplateCommand.toString(md.digest());
+    }
+    public synchronized String getArchive(String archiveKey) {
+        return archiveKey == null ? null : entries.getProperty("a." + archiveKey);
+    }
+    public synchronized void putArchive(String archiveKey, String archiveName) {
+        if (archiveKey != null && !archiveName.equals(entries
+                .setProperty("a." + archiveKey, archiveName)))
+            dirty = true;
+    }
+    public synchronized void save() {
+        if (!dirty) return;
+        try {
+            entries.setProperty("format", FORMAT);
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (Writer out = Files.newBufferedWriter(tmp)) {
+                entries.store(out, "ggq artifact cache");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException ioe) {
+            // the cache is only an optimization
+        }
+    }
+    private static String stamp(Path p) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+        Object inode = a.fileKey();
+        return a.size() + "," + a.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                + "," + (inode == null ? "" : inode) + ",";
+    }
+    private static String hash(Path p) throws IOException {
+        MessageDigest md = sha256();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(p)) {
+            int len;
+            while ((len = in.read(buf)) > 0)
+                md.update(buf, 0, len);
+        }
+        return TemplateCommand.toString(md.digest());
+    }
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
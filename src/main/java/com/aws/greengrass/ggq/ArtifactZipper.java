@@ -0,0 +1,317 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Builds the artifact zip. Entries are compressed independently on a
+ * fork-join pool, then stitched into the archive in the order they were
+ * given. Entry timestamps are pinned, so the same inputs always produce the
+ * same bytes, and therefore the same SHA-256 name.
+ */
+public class ArtifactZipper {
+    /* Extensions of files that are already compressed: deflating them again
+     * burns CPU for no gain, so they are STORED. */
+    static final Set<String> storeOnlyExtensions = new HashSet<>(Arrays.asList(
+            "jar", "war", "zip", "gz", "tgz", "bz2", "xz", "zst", "7z",
+            "tflite", "png", "jpg", "jpeg", "gif", "mp3", "mp4", "whl"));
+    private static final int BUFSIZE = 1 << 16;
+    private static final long INMEMORY_LIMIT = 4 << 20;
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int DOSTIME = 0x00210000; // 1980-01-01 00:00:00
+    private final ForkJoinPool pool;
+    private final Path workDir;
+    boolean storeOnly = false;
+    int level = Deflater.DEFAULT_COMPRESSION;
+    /**
+     * @param pool where entries get compressed
+     * @param workDir where large compressed entries are spooled before
+     *                they are stitched into the archive.
+     */
+    public ArtifactZipper(ForkJoinPool pool, Path workDir) {
+        this.pool = pool;
+        this.workDir = workDir;
+    }
+    public ArtifactZipper(Path workDir) {
+        this(ForkJoinPool.commonPool(), workDir);
+    }
+    public ArtifactZipper storeOnly(boolean s) {
+        storeOnly = s;
+        return this;
+    }
+    public ArtifactZipper level(int l) {
+        level = l;
+        return this;
+    }
+    public static boolean isCompressed(String name) {
+        return storeOnlyExtensions.contains(TemplateCommand.extension(name)
+                .toLowerCase());
+    }
+    /**
+     * Write a zip of the sources to out. Each entry is named by the file
+     * name of its source.
+     */
+    public void write(List<Path> sources, OutputStream out) throws IOException {
+        Set<String> names = new HashSet<>();
+        List<ForkJoinTask<Entry>> pending = new ArrayList<>(sources.size());
+        for (Path src : sources) {
+            String name = src.getFileName().toString();
+            if (!names.add(name))
+                throw new ZipException("duplicate entry: " + name);
+            boolean stored = storeOnly || isCompressed(name);
+            pending.add(pool.submit(() -> new Entry(name, src, stored).prepare()));
+        }
+        CountingOutputStream zout = new CountingOutputStream(out);
+        List<Entry> done = new ArrayList<>(pending.size());
+        boolean ok = false;
+        try {
+            for (ForkJoinTask<Entry> t : pending) {
+                Entry e = join(t);
+                System.out.println("Writing " + e.name);
+                e.writeLocal(zout);
+                done.add(e);
+            }
+            writeCentralDirectory(zout, done);
+            ok = true;
+        } finally {
+            if (!ok) // don't leave spooled entries behind
+                pending.forEach(t -> {
+                    if (!t.cancel(false))
+                        try {
+                        t.join().discard();
+                    } catch (Throwable ignore) {
+                    }
+                });
+        }
+        zout.flush();
+    }
+    private static Entry join(ForkJoinTask<Entry> t) throws IOException {
+        try {
+            return t.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable c = ex.getCause();
+            throw c instanceof IOException ? (IOException) c
+                    : new IOException(c);
+        }
+    }
+    private void writeCentralDirectory(CountingOutputStream out, List<Entry> entries) throws IOException {
+        long cdStart = out.count;
+        for (Entry e : entries)
+            e.writeCentral(out);
+        long cdEnd = out.count;
+        long cdSize = cdEnd - cdStart;
+        int n = entries.size();
+        LittleEndian le = new LittleEndian(out);
+        if (n >= 0xFFFF || cdStart >= ZIP64_LIMIT || cdSize >= ZIP64_LIMIT) {
+            le.i32(0x06064b50); // zip64 end of central directory record
+            le.i64(44);
+            le.i16(45);
+            le.i16(45);
+            le.i32(0);
+            le.i32(0);
+            le.i64(n);
+            le.i64(n);
+            le.i64(cdSize);
+            le.i64(cdStart);
+            le.i32(0x07064b50); // zip64 end of central directory locator
+            le.i32(0);
+            le.i64(cdEnd);
+            le.i32(1);
+        }
+        le.i32(0x06054b50);
+        le.i16(0);
+        le.i16(0);
+        le.i16(Math.min(n, 0xFFFF));
+        le.i16(Math.min(n, 0xFFFF));
+        le.i32(Math.min(cdSize, ZIP64_LIMIT));
+        le.i32(Math.min(cdStart, ZIP64_LIMIT));
+        le.i16(0);
+    }
+    private class Entry {
+        final String name;
+        final byte[] bname;
+        final Path src;
+        final boolean stored;
+        long crc, size, csize, offset;
+        byte[] data;     // compressed body, if small
+        Path spool;      // compressed body, if large
+        Entry(String n, Path s, boolean st) {
+            name = n;
+            bname = n.getBytes(StandardCharsets.UTF_8);
+            src = s;
+            stored = st;
+        }
+        Entry prepare() throws IOException {
+            CRC32 crc32 = new CRC32();
+            byte[] buf = new byte[BUFSIZE];
+            if (stored) {
+                try (InputStream in = Files.newInputStream(src)) {
+                    int len;
+                    while ((len = in.read(buf)) > 0) {
+                        crc32.update(buf, 0, len);
+                        size += len;
+                    }
+                }
+                csize = size;
+            } else {
+                boolean small = Files.size(src) <= INMEMORY_LIMIT;
+                ByteArrayOutputStream mem = null;
+                OutputStream body;
+                if (small)
+                    body = mem = new ByteArrayOutputStream();
+                else {
+                    spool = Files.createTempFile(workDir, ".ggq", ".z");
+                    body = new BufferedOutputStream(Files.newOutputStream(spool), BUFSIZE);
+                }
+                Deflater deflater = new Deflater(level, true);
+                CountingOutputStream counted = new CountingOutputStream(body);
+                try (InputStream in = Files.newInputStream(src);
+                        OutputStream dout = new DeflaterOutputStream(counted, deflater, BUFSIZE)) {
+                    int len;
+                    while ((len = in.read(buf)) > 0) {
+                        crc32.update(buf, 0, len);
+                        size += len;
+                        dout.write(buf, 0, len);
+                    }
+                } catch (IOException ex) {
+                    discard();
+                    throw ex;
+                } finally {
+                    deflater.end();
+                }
+                csize = counted.count;
+                if (small) data = mem.toByteArray();
+            }
+            crc = crc32.getValue();
+            return this;
+        }
+        boolean zip64() {
+            return size >= ZIP64_LIMIT || csize >= ZIP64_LIMIT;
+        }
+        void writeLocal(CountingOutputStream out) throws IOException {
+            offset = out.count;
+            boolean z64 = zip64();
+            LittleEndian le = new LittleEndian(out);
+            le.i32(0x04034b50);
+            le.i16(z64 ? 45 : 20);
+            le.i16(0x0800); // names are UTF-8
+            le.i16(stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            le.i32(DOSTIME);
+            le.i32(crc);
+            le.i32(z64 ? ZIP64_LIMIT : csize);
+            le.i32(z64 ? ZIP64_LIMIT : size);
+            le.i16(bname.length);
+            le.i16(z64 ? 20 : 0);
+            out.write(bname);
+            if (z64) {
+                le.i16(0x0001);
+                le.i16(16);
+                le.i64(size);
+                le.i64(csize);
+            }
+            if (data != null)
+                out.write(data);
+            else
+                copy(stored ? src : spool, out);
+            discard();
+        }
+        void writeCentral(CountingOutputStream out) throws IOException {
+            boolean bigSize = size >= ZIP64_LIMIT;
+            boolean bigCsize = csize >= ZIP64_LIMIT;
+            boolean bigOffset = offset >= ZIP64_LIMIT;
+            int extra = (bigSize ? 8 : 0) + (bigCsize ? 8 : 0) + (bigOffset ? 8 : 0);
+            int version = extra > 0 ? 45 : 20;
+            LittleEndian le = new LittleEndian(out);
+            le.i32(0x02014b50);
+            le.i16(version);
+            le.i16(version);
+            le.i16(0x0800);
+            le.i16(stored ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            le.i32(DOSTIME);
+            le.i32(crc);
+            le.i32(bigCsize ? ZIP64_LIMIT : csize);
+            le.i32(bigSize ? ZIP64_LIMIT : size);
+            le.i16(bname.length);
+            le.i16(extra > 0 ? extra + 4 : 0);
+            le.i16(0);  // comment
+            le.i16(0);  // disk
+            le.i16(0);  // internal attributes
+            le.i32(0);  // external attributes
+            le.i32(bigOffset ? ZIP64_LIMIT : offset);
+            out.write(bname);
+            if (extra > 0) {
+                le.i16(0x0001);
+                le.i16(extra);
+                if (bigSize) le.i64(size);
+                if (bigCsize) le.i64(csize);
+                if (bigOffset) le.i64(offset);
+            }
+        }
+        void discard() {
+            data = null;
+            if (spool != null)
+                try {
+                Files.deleteIfExists(spool);
+                spool = null;
+            } catch (IOException ex) {
+            }
+        }
+    }
+    private static void copy(Path p, OutputStream out) throws IOException {
+        try (InputStream in = Files.newInputStream(p)) {
+            byte[] buf = new byte[BUFSIZE];
+            int len;
+            while ((len = in.read(buf)) > 0)
+                out.write(buf, 0, len);
+        }
+    }
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+    private static class LittleEndian {
+        private final OutputStream out;
+        private final byte[] buf = new byte[8];
+        LittleEndian(OutputStream o) {
+            out = o;
+        }
+        void i16(int v) throws IOException {
+            buf[0] = (byte) v;
+            buf[1] = (byte) (v >> 8);
+            out.write(buf, 0, 2);
+        }
+        void i32(long v) throws IOException {
+            for (int i = 0; i < 4; i++)
+                buf[i] = (byte) (v >> (i * 8));
+            out.write(buf, 0, 4);
+        }
+        void i64(long v) throws IOException {
+            for (int i = 0; i < 8; i++)
+                buf[i] = (byte) (v >> (i * 8));
+            out.write(buf, 0, 8);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The privileged half of a CliSession. It is started once, under sudo, and
+ * then runs greengrass-cli commands on behalf of ggq processes that connect
+ * to it on the loopback interface and present the session token.
+ * <p>
+ * If the greengrass-cli jars can be found next to the launcher script, the
+ * CLI runs inside this JVM, so it only pays for startup once. Otherwise
+ * each command is spawned, which at least saves the trip through sudo.
+ * The server exits once it has been idle for a while.
+ * <p>
+ * Since it runs as root, it gives a connection little until the token has
+ * been checked: a few seconds to send its request, no more bytes than the
+ * token has, and one of a handful of threads. Anyone past that waits for
+ * a thread or is turned away.
+ */
+public class CliServer {
+    static final int SHUTDOWN = -1;
+    private final String cli;
+    private final byte[] token;
+    private final ServerSocket server;
+    private final AtomicInteger active = new AtomicInteger();
+    private final InProcess inProcess;
+    private volatile boolean running = true;
+    int idleMillis = 15 * 60 * 1000;
+    int readMillis = 10 * 1000;
+    private final ExecutorService handlers = new ThreadPoolExecutor(4, 4, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(16), r -> {
+                Thread t = new Thread(r, "cli-session");
+                t.setDaemon(true);
+                return t;
+            });
+    public CliServer(String cli, String token) throws IOException {
+        this.cli = cli;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        inProcess = InProcess.find(cli);
+    }
+    public int getPort() {
+        return server.getLocalPort();
+    }
+    public boolean isInProcess() {
+        return inProcess != null;
+    }
+    /**
+     * Started by CliSession.start: the greengrass-cli path is the argument,
+     * the token arrives on stdin, and the port number is written to stdout.
+     */
+    public static void main(String[] args) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in,
+                StandardCharsets.UTF_8));
+        PrintStream port = System.out;
+        // Once the port is sent, nobody is listening
+        PrintStream sink = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        });
+        System.setOut(sink);
+        System.setErr(sink);
+        CliServer s = new CliServer(args[0], in.readLine());
+        port.println(s.getPort());
+        port.flush();
+        s.serve();
+        System.exit(0);
+    }
+    public void serve() throws IOException {
+        server.setSoTimeout(idleMillis);
+        try {
+            while (running)
+                try {
+                Socket s = server.accept();
+                active.incrementAndGet();
+                try {
+                    handlers.execute(() -> handle(s));
+                } catch (RejectedExecutionException ex) {
+                    active.decrementAndGet();
+                    s.close();
+                }
+            } catch (SocketTimeoutException ex) {
+                if (active.get() == 0) running = false;
+            } catch (SocketException ex) {
+                running = false;
+            }
+        } finally {
+            close();
+        }
+    }
+    public void close() {
+        running = false;
+        handlers.shutdown();
+        try {
+            server.close();
+        } catch (IOException ex) {
+        }
+    }
+    private void handle(Socket s) {
+        try (Socket sock = s;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(sock
+                        .getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock
+                        .getOutputStream()))) {
+            sock.setSoTimeout(readMillis);
+            if (!MessageDigest.isEqual(token, readBytes(in, token.length)))
+                return;
+            int n = in.readInt();
+            if (n == SHUTDOWN) {
+                close();
+                return;
+            }
+            String[] args = new String[n];
+            for (int i = 0; i < n; i++)
+                args[i] = readString(in);
+            Reply reply = new Reply(out);
+            int rc;
+            try {
+                rc = run(args, reply);
+            } catch (Throwable t) {
+                reply.accept(String.valueOf(t), true);
+                rc = -1;
+            }
+            reply.exit(rc);
+        } catch (IOException ex) {
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+    private int run(String[] args, LineReceiver reply) throws IOException, InterruptedException {
+        if (inProcess != null)
+            return inProcess.run(args, reply);
+        String[] cmd = new String[args.length + 1];
+        cmd[0] = cli;
+        System.arraycopy(args, 0, cmd, 1, args.length);
+        return TemplateCommand.spawn(reply, cmd);
+    }
+    /* Output lines go back tagged 'O' or 'E', then 'X' and the exit code */
+    private static class Reply implements LineReceiver {
+        private final DataOutputStream out;
+        Reply(DataOutputStream o) {
+            out = o;
+        }
+        @Override
+        public synchronized void accept(CharSequence line, boolean error) {
+            try {
+                out.writeByte(error ? 'E' : 'O');
+                writeString(out, line.toString());
+            } catch (IOException ex) {
+            }
+        }
+        synchronized void exit(int rc) throws IOException {
+            out.writeByte('X');
+            out.writeInt(rc);
+            out.flush();
+        }
+    }
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+    static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in, 1 << 24), StandardCharsets.UTF_8);
+    }
+    static byte[] readBytes(DataInputStream in, int max) throws IOException {
+        int len = in.readInt();
+        if (len < 0 || len > max)
+            throw new IOException("Bad string length " + len);
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return b;
+    }
+    /**
+     * Runs greengrass-cli's main class in this JVM. Its output is captured by
+     * swapping System.out/err, and its System.exit is trapped, so commands
+     * are run one at a time.
+     */
+    static class InProcess {
+        private final Method main;
+        private final ClassLoader loader;
+        private InProcess(Method m, ClassLoader l) {
+            main = m;
+            loader = l;
+        }
+        static InProcess find(String cli) {
+            try {
+                Path lib = Paths.get(cli).toRealPath().getParent()
+                        .resolveSibling("lib");
+                List<URL> jars = new ArrayList<>();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(lib, "*.jar")) {
+                    for (Path j : ds)
+                        jars.add(j.toUri().toURL());
+                }
+                if (jars.isEmpty()) return null;
+                ClassLoader l = new URLClassLoader(jars.toArray(new URL[jars.size()]),
+                        ClassLoader.getSystemClassLoader().getParent());
+                Method m = Class.forName("com.aws.greengrass.cli.CLI", false, l)
+                        .getMethod("main", String[].class);
+                System.setSecurityManager(new ExitTrap());
+                return new InProcess(m, l);
+            } catch (Throwable t) {
+                // No jars, or no way to trap System.exit: spawn instead
+                return null;
+            }
+        }
+        synchronized int run(String[] args, LineReceiver lr) {
+            PrintStream out = System.out, err = System.err;
+            Thread me = Thread.currentThread();
+            ClassLoader ccl = me.getContextClassLoader();
+            LineOutputStream o = new LineOutputStream(lr, false);
+            LineOutputStream e = new LineOutputStream(lr, true);
+            System.setOut(new PrintStream(o, true));
+            System.setErr(new PrintStream(e, true));
+            me.setContextClassLoader(loader);
+            ExitTrap.trapping.set(true);
+            try {
+                main.invoke(null, (Object) args);
+                return 0;
+            } catch (InvocationTargetException ex) {
+                Throwable c = ex.getCause();
+                if (c instanceof ExitTrap.Exit)
+                    return ((ExitTrap.Exit) c).status;
+                lr.accept(String.valueOf(c), true);
+                return -1;
+            } catch (IllegalAccessException ex) {
+                lr.accept(String.valueOf(ex), true);
+                return -1;
+            } finally {
+                ExitTrap.trapping.set(false);
+                me.setContextClassLoader(ccl);
+                System.out.flush();
+                System.err.flush();
+                o.flushLine();
+                e.flushLine();
+                System.setOut(out);
+                System.setErr(err);
+            }
+        }
+    }
+    private static class ExitTrap extends SecurityManager {
+        static final ThreadLocal<Boolean> trapping = new ThreadLocal<>();
+        @SuppressWarnings("serial")
+        static class Exit extends SecurityException {
+            final int status;
+            Exit(int s) {
+                super("exit " + s);
+                status = s;
+            }
+        }
+        @Override
+        public void checkExit(int status) {
+            if (Boolean.TRUE.equals(trapping.get()))
+                throw new Exit(status);
+        }
+        @Override
+        public void checkPermission(Permission perm) {
+        }
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+        }
+    }
+    private static class LineOutputStream extends OutputStream {
+        private final LineReceiver lr;
+        private final boolean error;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        LineOutputStream(LineReceiver l, boolean e) {
+            lr = l;
+            error = e;
+        }
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n' || b == '\r') flushLine();
+            else line.write(b);
+        }
+        synchronized void flushLine() {
+            if (line.size() > 0) {
+                lr.accept(new String(line.toByteArray(), StandardCharsets.UTF_8), error);
+                line.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+ * A connection to a long-lived, privileged CliServer. While a session is
+ * open, TemplateCommand.runCommand sends greengrass-cli commands to it
+ * instead of forking sudo and a fresh CLI JVM for every one. The port and
+ * token of the current session are kept in ~/.ggq.session, readable only by
+ * the user who started it.
+ */
+public class CliSession {
+    private static final Path sessionFile = Paths.get(System
+            .getProperty("user.home", "/tmp"), ".ggq.session");
+    private static final int CONNECT_TIMEOUT = 2000;
+    private final int port;
+    private final String token;
+    public CliSession(int port, String token) {
+        this.port = port;
+        this.token = token;
+    }
+    /** The open session, or null if there isn't one. */
+    public static CliSession current() {
+        try {
+            List<String> l = Files.readAllLines(sessionFile);
+            if (l.size() >= 2)
+                return new CliSession(Integer.parseInt(l.get(0).trim()), l.get(1));
+        } catch (IOException | NumberFormatException ex) {
+        }
+        return null;
+    }
+    public static void forget() {
+        try {
+            Files.deleteIfExists(sessionFile);
+        } catch (IOException ex) {
+        }
+    }
+    /**
+     * Start a helper for tc's greengrass-cli, unless one is already running.
+     * sudo gets to ask for a password up front, then the helper is started
+     * in the background.
+     */
+    public static boolean start(TemplateCommand tc) {
+        if (ping()) return true;
+        forget();
+        String cli = tc.getGGCli();
+        if (tc.dryrun) return true;
+        try {
+            if (new ProcessBuilder("sudo", "-v").inheritIO().start().waitFor() != 0)
+                return false;
+            List<String> cmd = new ArrayList<>(Arrays.asList("sudo", "-n",
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+            if (!System.getProperty("java.specification.version").startsWith("1."))
+                cmd.add("-Djava.security.manager=allow");
+            cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"),
+                    CliServer.class.getName(), cli));
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.environment().putIfAbsent("LOGNAME", "ggc");
+            pb.redirectError(ProcessBuilder.Redirect.to(new File("/dev/null")));
+            Process p = pb.start();
+            String token = CloudOps.generateRandomString(32);
+            try (Writer w = new OutputStreamWriter(p.getOutputStream(),
+                    StandardCharsets.UTF_8)) {
+                w.write(token + "\n");
+            }
+            String port = new BufferedReader(new InputStreamReader(p
+                    .getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if (port == null) return false;
+            Path tmp = sessionFile.resolveSibling(".ggq.session.tmp");
+            Files.deleteIfExists(tmp);
+            Files.createFile(tmp, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+            Files.write(tmp, (port.trim() + "\n" + token + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, sessionFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | InterruptedException | UnsupportedOperationException ex) {
+            System.out.println("Could not start CLI session: " + ex);
+            return false;
+        }
+    }
+    public static void stop() {
+        CliSession s = current();
+        if (s != null)
+            try (Socket sock = s.connect();
+                    DataOutputStream out = new DataOutputStream(sock.getOutputStream())) {
+            CliServer.writeString(out, s.token);
+            out.writeInt(CliServer.SHUTDOWN);
+        } catch (IOException ex) {
+        }
+        forget();
+    }
+    private static boolean ping() {
+        CliSession s = current();
+        if (s != null)
+            try {
+            s.connect().close();
+            return true;
+        } catch (IOException ex) {
+        }
+        return false;
+    }
+    private Socket connect() throws IOException {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                CONNECT_TIMEOUT);
+        return s;
+    }
+    /**
+     * Run greengrass-cli with args in the helper.
+     * @throws IOException if the helper couldn't be reached. Once the
+     * command has been sent, errors are reported as output and a -1 exit.
+     */
+    public int run(LineReceiver lr, String... args) throws IOException {
+        Socket sock = connect();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(sock
+                .getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock
+                        .getOutputStream()))) {
+            CliServer.writeString(out, token);
+            out.writeInt(args.length);
+            for (String a : args)
+                CliServer.writeString(out, a);
+            out.flush();
+            int tag;
+            try {
+                tag = in.readByte();
+            } catch (EOFException ex) {
+                throw new IOException("CLI session refused the request");
+            }
+            try {
+                while (tag != 'X') {
+                    lr.accept(CliServer.readString(in), tag == 'E');
+                    tag = in.readByte();
+                }
+                return in.readInt();
+            } catch (IOException ex) {
+                lr.accept("CLI session: " + ex, true);
+                return -1;
+            }
+        } finally {
+            sock.close();
+        }
+    }
+}
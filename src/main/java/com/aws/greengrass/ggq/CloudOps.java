@@ -6,24 +6,30 @@ package com.aws.greengrass.ggq;
 
 import com.vdurmont.semver4j.*;
 import java.io.*;
+import java.net.*;
 import java.nio.charset.*;
 import java.nio.file.*;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.regex.*;
 import org.jetbrains.annotations.*;
+import software.amazon.awssdk.awscore.exception.*;
 import software.amazon.awssdk.core.*;
 import software.amazon.awssdk.regions.*;
+import software.amazon.awssdk.regions.providers.*;
 import software.amazon.awssdk.services.greengrassv2.*;
 import software.amazon.awssdk.services.greengrassv2.model.*;
 import software.amazon.awssdk.services.s3.*;
 import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.sts.*;
 
 public class CloudOps {
     String bucket;
+    private final Region region;
     public static CloudOps of(@NotNull Region r) {
-        return regions.computeIfAbsent(r, R -> new CloudOps(GreengrassV2Client.
+        return regions.computeIfAbsent(r, R -> new CloudOps(R, GreengrassV2Client.
                 builder()
                 .region(R)
                 .build()));
@@ -31,58 +37,236 @@ public class CloudOps {
     public static CloudOps of(@NotNull String r) {
         return of(Region.of(r));
     }
-    public static CloudOps dflt() {
+    public static synchronized CloudOps dflt() {
         if (dfltCloud == null)
-            dfltCloud = new CloudOps(GreengrassV2Client.create());
+            dfltCloud = new CloudOps(null, GreengrassV2Client.create());
         return dfltCloud;
     }
-    private CloudOps(GreengrassV2Client c) {
+    private CloudOps(Region r, GreengrassV2Client c) {
         requireCredentials();
+        region = r;
         client = c;
     }
+    public String regionName() {
+        return region == null ? "default" : region.id();
+    }
     static final ConcurrentHashMap<Region, CloudOps> regions = new ConcurrentHashMap<>();
     static CloudOps dfltCloud = null;
     private final GreengrassV2Client client;
-    public List<Component> components() {
-        return client.listComponents(b -> b.build()).components();
+    /** All the components in the account, fetched a page at a time as
+     * they're iterated over. */
+    public Iterable<Component> components() {
+        return pages(t -> client.listComponents(b -> b.nextToken(t)),
+                ListComponentsResponse::components, ListComponentsResponse::nextToken);
+    }
+    public Iterable<CoreDevice> coreDevices() {
+        return pages(t -> client.listCoreDevices(b -> b.nextToken(t)),
+                ListCoreDevicesResponse::coreDevices, ListCoreDevicesResponse::nextToken);
     }
-    public List<CoreDevice> coreDevices() {
-        return client.listCoreDevices(b -> b.build()).coreDevices();
+    static <R, T> Iterable<T> pages(Function<String, R> fetch,
+            Function<R, List<T>> items, Function<R, String> next) {
+        return () -> new Iterator<T>() {
+            private Iterator<T> page = Collections.emptyIterator();
+            private String token = null;
+            private boolean more = true;
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && more) {
+                    R r = fetch.apply(token);
+                    page = items.apply(r).iterator();
+                    token = next.apply(r);
+                    more = token != null && !token.isEmpty();
+                }
+                return page.hasNext();
+            }
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return page.next();
+            }
+        };
     }
     private Map<String, Component> components = null;
     public synchronized Map<String, Component> getComponents() {
         Map<String, Component> c = components;
         if (c == null) {
             c = components = new HashMap<>();
-            components().forEach(nc -> components.put(nc.componentName(), nc));
+            Map<String, String> latest = new HashMap<>();
+            for (Component nc : components()) {
+                components.put(nc.componentName(), nc);
+                latest.put(nc.componentName(), nc.latestVersion().componentVersion());
+            }
+            catalog().putAll(latest);
         }
         return c;
     }
     public Component getComponent(String name) {
         return getComponents().get(name);
     }
+    /**
+     * The newest version of the named component in this region, or null if
+     * there isn't one. Looked up by name, and remembered on disk for a
+     * while, rather than listing the whole account.
+     */
+    public Semver latestVersion(String name) {
+        Catalog catalog = catalog();
+        String v = catalog.get(name);
+        if (v == null) {
+            Semver max = null;
+            try {
+                String arn = componentArn(name);
+                for (ComponentVersionListItem i : pages(t -> retry(() -> client
+                        .listComponentVersions(b -> b.arn(arn).nextToken(t))),
+                        ListComponentVersionsResponse::componentVersions,
+                        ListComponentVersionsResponse::nextToken)) {
+                    Semver s = new Semver(i.componentVersion());
+                    if (max == null || s.isGreaterThan(max)) max = s;
+                }
+            } catch (ResourceNotFoundException ex) {
+            }
+            v = max == null ? "" : max.toString();
+            catalog.put(name, v);
+        }
+        return v.isEmpty() ? null : new Semver(v);
+    }
+    private String account;
+    private Region resolved;
+    /* The region and account the client really talks to, whatever the
+     * profile and environment say today */
+    private synchronized Region resolvedRegion() {
+        if (resolved == null)
+            resolved = region != null ? region
+                    : new DefaultAwsRegionProviderChain().getRegion();
+        return resolved;
+    }
+    private synchronized String account() {
+        if (account == null)
+            try (StsClient sts = StsClient.builder().region(resolvedRegion()).build()) {
+                account = sts.getCallerIdentity().account();
+            }
+        return account;
+    }
+    private String componentArn(String name) {
+        Region r = resolvedRegion();
+        return "arn:" + PartitionMetadata.of(r).id() + ":greengrass:" + r.id()
+                + ":" + account() + ":components:" + name;
+    }
+    private Catalog catalog;
+    private synchronized Catalog catalog() {
+        if (catalog == null)
+            catalog = new Catalog(account() + "-" + resolvedRegion().id());
+        return catalog;
+    }
+    /* Latest component versions seen in one account and region, in
+     * ~/.ggq.catalog/<account>-<region>. Entries are "version,whenSeen"; an
+     * empty version means no such component. */
+    private static class Catalog {
+        private final Path file;
+        private final long ttl = 1000 * Long.parseLong(Main
+                .getPreference("catalogTTL", "600"));
+        private Properties entries;
+        Catalog(String name) {
+            file = Paths.get(System.getProperty("user.home", "/tmp"),
+                    ".ggq.catalog", name);
+        }
+        synchronized String get(String name) {
+            String e = load().getProperty(name);
+            if (e == null) return null;
+            int comma = e.lastIndexOf(',');
+            try {
+                if (comma < 0 || System.currentTimeMillis()
+                        - Long.parseLong(e.substring(comma + 1)) > ttl)
+                    return null;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+            return e.substring(0, comma);
+        }
+        synchronized void put(String name, String version) {
+            load().setProperty(name, version + "," + System.currentTimeMillis());
+            save();
+        }
+        synchronized void putAll(Map<String, String> versions) {
+            String now = "," + System.currentTimeMillis();
+            versions.forEach((name, version) -> load().setProperty(name, version + now));
+            save();
+        }
+        synchronized void forget(String name) {
+            if (load().remove(name) != null) save();
+        }
+        private Properties load() {
+            if (entries == null) {
+                entries = new Properties();
+                try (Reader in = Files.newBufferedReader(file)) {
+                    entries.load(in);
+                } catch (IOException ex) {
+                }
+            }
+            return entries;
+        }
+        private void save() {
+            Path tmp = null;
+            try {
+                Files.createDirectories(file.getParent());
+                // Other ggq processes may be saving too
+                tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+                try (Writer out = Files.newBufferedWriter(tmp)) {
+                    entries.store(out, "Latest component versions");
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                if (tmp != null) try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex2) {
+                }
+            }
+        }
+    }
     private S3Client s3client;
-    public S3Client s3() {
+    public synchronized S3Client s3() {
         S3Client s = s3client;
-        if (s == null)
-            s3client = s = S3Client.create();
+        if (s == null) {
+            S3ClientBuilder b = S3Client.builder();
+            if (region != null) b.region(region);
+            String endpoint = Main.getPreference("s3endpoint", null);
+            if (endpoint != null) // an S3 stand-in, like minio
+                b.endpointOverride(URI.create(endpoint))
+                        .serviceConfiguration(S3Configuration.builder()
+                                .pathStyleAccessEnabled(true)
+                                .build());
+            s3client = s = b.build();
+        }
         return s;
     }
-    public String getBucket() {
+    /* Buckets have to be in the same region as the components that use
+     * them, so each region gets its own, named after the default one */
+    private String bucketKey() {
+        return region == null ? "bucket" : "bucket." + region.id();
+    }
+    public synchronized String getBucket() {
         String b = bucket;
         if (b == null) {
-            b = Main.getPreference("bucket", null);
-            if (b == null)
-                b = "gg2-recipes-" + generateRandomString(20);
+            b = Main.getPreference(bucketKey(), null);
+            if (b == null) {
+                String base = Main.getPreference("bucket", null);
+                b = base != null && region != null ? base + "-" + region.id()
+                        : "gg2-recipes-" + generateRandomString(20);
+            }
             setBucket(b);
         }
         return b;
     }
-    public void setBucket(String b) {
+    public synchronized void setBucket(String b) {
         if (b != null && !b.equals(bucket)) {
-            Main.putPreference("bucket", b);
+            Main.putPreference(bucketKey(), b);
             try {
-                s3().createBucket(bld -> bld.bucket(b));
+                s3().createBucket(bld -> {
+                    bld.bucket(b);
+                    if (region != null && !region.equals(Region.US_EAST_1))
+                        bld.createBucketConfiguration(c -> c
+                                .locationConstraint(region.id()));
+                });
                 System.out.println("Created bucket "+b);
             } catch (BucketAlreadyOwnedByYouException ioe) {
                 // if it's already there, I don't care.
@@ -90,13 +274,113 @@ public class CloudOps {
         }
         bucket = b;
     }
-    public void putObject(String tag, Path path) {
-        s3().putObject(b -> b.bucket(getBucket())
-                .contentType("application/zip")
-                .key(tag), path);
+    static final Path uploadJournal = Paths.get(System
+            .getProperty("user.home", "/tmp"), ".ggq.uploads");
+    public void putObject(String tag, Path path) throws IOException {
+        putObject(tag, path, true);
+    }
+    public void putObject(String tag, Path path, boolean showProgress) throws IOException {
+        boolean console = showProgress && System.console() != null;
+        new S3Upload(s3(), getBucket(), tag, path)
+                .partSize(Math.max(S3Upload.MIN_PART, Integer.parseInt(Main
+                        .getPreference("partSize", "8")) << 20))
+                .jobs(Integer.parseInt(Main.getPreference("uploadJobs", "4")))
+                .journal(uploadJournal)
+                .progress((done, total, rate) -> {
+                    if (console)
+                        System.out.printf("\r%s: %3d%% %6.1f MB/s", tag,
+                                done * 100 / Math.max(1, total), rate / (1 << 20));
+                })
+                .run();
+        if (console) System.out.println();
         System.out.println("Wrote artifacts to s3://" + getBucket()
                         + '/' + tag);
     }
+    /**
+     * Upload path as tag unless the bucket already has it. Only for keys
+     * that are named by the hash of their content, like artifact zips: a
+     * key that's there at all is assumed to hold the same bytes.
+     * @return false if the upload was skipped
+     */
+    public boolean putIfAbsent(String tag, Path path) throws IOException {
+        return putIfAbsent(tag, path, true);
+    }
+    public boolean putIfAbsent(String tag, Path path, boolean showProgress) throws IOException {
+        String b = getBucket();
+        return putIfAbsent(s3(), b, tag, path, knownKeys(b), () -> putObject(tag, path, showProgress));
+    }
+    interface Upload {
+        void run() throws IOException;
+    }
+    static boolean putIfAbsent(S3Client s3, String b, String tag, Path path, KnownKeys known,
+            Upload upload) throws IOException {
+        if (known.fresh(tag)) {
+            System.out.println("Already in s3://" + b + '/' + tag);
+            return false;
+        }
+        long size = Files.size(path);
+        boolean present;
+        try {
+            present = s3.headObject(h -> h.bucket(b).key(tag))
+                    .contentLength() == size;
+        } catch (NoSuchKeyException ex) {
+            present = false;
+        } catch (S3Exception ex) {
+            if (ex.statusCode() != 404) throw ex;
+            present = false;
+        }
+        if (present)
+            System.out.println("Already in s3://" + b + '/' + tag);
+        else
+            upload.run();
+        known.add(tag);
+        return !present;
+    }
+    /*
+     * Keys this user has seen in a bucket, and when, in
+     * ~/.ggq.uploads/<bucket>.keys. They're only trusted for uploadsTTL
+     * seconds (a day): after that, a HEAD request checks that the object
+     * hasn't been deleted since.
+     */
+    static class KnownKeys {
+        private final Path file;
+        private final long ttl;
+        private final Map<String, Long> seen = new ConcurrentHashMap<>();
+        KnownKeys(Path f, long t) {
+            file = f;
+            ttl = t;
+            try {
+                for (String l : Files.readAllLines(file)) {
+                    int sp = l.lastIndexOf(' ');
+                    if (sp > 0) try {
+                        seen.put(l.substring(0, sp), Long.parseLong(l.substring(sp + 1)));
+                    } catch (NumberFormatException ex) {
+                    }
+                }
+            } catch (IOException ex) {
+            }
+        }
+        boolean fresh(String key) {
+            Long t = seen.get(key);
+            return t != null && System.currentTimeMillis() - t <= ttl;
+        }
+        synchronized void add(String key) {
+            long now = System.currentTimeMillis();
+            seen.put(key, now);
+            try {
+                Files.createDirectories(file.getParent());
+                Files.write(file, (key + " " + now + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+            }
+        }
+    }
+    private static final Map<String, KnownKeys> knownKeys = new ConcurrentHashMap<>();
+    private static KnownKeys knownKeys(String bucket) {
+        return knownKeys.computeIfAbsent(bucket, b -> new KnownKeys(
+                uploadJournal.resolve(b + ".keys"),
+                1000 * Long.parseLong(Main.getPreference("uploadsTTL", "86400"))));
+    }
     static final char[] rsChars = "abcdefghijklmnopqrstuvwxyx0123456789".
             toCharArray();
     static final SecureRandom random = new SecureRandom();
@@ -109,27 +393,58 @@ public class CloudOps {
     static final Pattern versionRep =
             Pattern.compile("componentversion: *[0-9][0-9.]*",
                     Pattern.CASE_INSENSITIVE);
-    public void uploadRecipe(@NotNull String name, @NotNull Semver version, @NotNull String recipe) {
-        Component c = getComponent(name);
-        if (c != null) {
-            Semver v = new Semver(c.latestVersion().componentVersion());
-            if (version.isLowerThanOrEqualTo(v)) {
+    /** @return the version that was created, which may have been bumped */
+    public String uploadRecipe(@NotNull String name, @NotNull Semver requested, @NotNull String recipe) {
+        for (int attempt = 0;; attempt++) {
+            Semver version = requested;
+            Semver v = latestVersion(name);
+            if (v != null && version.isLowerThanOrEqualTo(v)) {
                 version = v.nextPatch();
-                System.out.println("Bump version to " + version);
+                System.out.println(regionName() + ": bump " + name
+                        + " version to " + version);
             }
+            String body = versionRep.matcher(recipe)
+                    .replaceFirst("componentVersion: " + version);
+            try {
+                retry(() -> client.createComponentVersion(CreateComponentVersionRequest
+                        .builder()
+                        .inlineRecipe(SdkBytes.fromString(body, Charset.
+                                        forName("UTF-8")))
+                        .build()
+                ));
+            } catch (ConflictException ex) {
+                // The cached version was stale: someone else published
+                if (attempt > 0) throw ex;
+                catalog().forget(name);
+                continue;
+            }
+            catalog().put(name, version.toString());
+            return version.toString();
         }
-        recipe = versionRep.matcher(recipe)
-                .replaceFirst("componentVersion: " + version);
-        try {
-            client.createComponentVersion(CreateComponentVersionRequest
-                    .builder()
-                    .inlineRecipe(SdkBytes.fromString(recipe, Charset.
-                                    forName("UTF-8")))
-                    .build()
-            );
-        } catch (Throwable t) {
-            System.out.println(t);
-        }
+    }
+    static int maxAttempts = 8;
+    static long baseDelay = 250, maxDelay = 20000;
+    /**
+     * Call op, and when the service says to slow down, call it again after
+     * a random delay of up to an exponentially growing limit ("full jitter"),
+     * so that concurrent callers spread out instead of retrying in step.
+     */
+    static <T> T retry(Supplier<T> op) {
+        for (int attempt = 1;; attempt++)
+            try {
+                return op.get();
+            } catch (AwsServiceException ex) {
+                if (attempt >= maxAttempts || !(ex.isThrottlingException()
+                        || ex.statusCode() == 429))
+                    throw ex;
+                long limit = Math.min(maxDelay, baseDelay << Math.min(attempt, 20));
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
     }
     public static final boolean haveAWScreds =
             System.getenv("AWS_ACCESS_KEY_ID") != null
@@ -4,9 +4,26 @@
  */
 package com.aws.greengrass.ggq;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
 import java.util.function.*;
 
+/**
+ * What greengrass-cli says is deployed. "component list" is slow, so its
+ * result is kept in ~/.ggq.components and shared by ggq runs until it is
+ * older than the TTL, or until the nucleus log shows that something has
+ * changed. A snapshot is never modified once it's built, so it can be read
+ * from any thread while a new one is being fetched. A list that couldn't
+ * be fetched is never cached. In a run that lasts (--batch) a snapshot
+ * that's getting old is refreshed in the background; a quick one just
+ * uses it until it expires, rather than leave a sudo prompt, or a thread
+ * System.exit will cut short, behind.
+ */
 public class DeployedComponent {
     public String name, version, state, configuration;
     private DeployedComponent(String n) {
@@ -15,60 +32,216 @@ public class DeployedComponent {
         state = "missing";
         configuration = null;
     }
-    private static Map<String, DeployedComponent> svcMap = null;
+    private static final Path cacheFile = Paths.get(System
+            .getProperty("user.home", "/tmp"), ".ggq.components");
+    static long ttl = 1000 * Long.parseLong(Main
+            .getPreference("componentsTTL", "60"));
+    private static volatile Snapshot snapshot = null;
+    static volatile boolean refreshEarly = false;
     public static DeployedComponent of(String name, TemplateCommand tc) {
-        return map(tc).computeIfAbsent(name.toLowerCase(),
-                k -> new DeployedComponent(name));
+        DeployedComponent c = map(tc, false).get(name.toLowerCase());
+        return c != null ? c : new DeployedComponent(name);
     }
     public static void forEach(TemplateCommand tc, Consumer<DeployedComponent> func) {
-        map(tc).values().forEach(func);
+        map(tc, true).values().forEach(func);
+    }
+    /** Something was just deployed: the next lookup has to ask the CLI */
+    public static void invalidate() {
+        snapshot = null;
+        try {
+            Files.deleteIfExists(cacheFile);
+        } catch (IOException ex) {
+        }
+    }
+    /**
+     * @param needState whether the states of the components matter, or just
+     *                  their versions.
+     */
+    private static Map<String, DeployedComponent> map(TemplateCommand tc, boolean needState) {
+        Path log = logFile(tc);
+        Snapshot s = snapshot;
+        if (s == null)
+            snapshot = s = Snapshot.load();
+        if (s != null) {
+            int changes = s.changes(log);
+            long age = System.currentTimeMillis() - s.time;
+            if (age <= ttl && changes != DEPLOYED
+                    && (changes != STATE_CHANGED || !needState)) {
+                if (age > ttl / 2 && refreshEarly)
+                    refreshInBackground(tc);
+                return s.components;
+            }
+        }
+        return refresh(tc, s).components;
     }
-    private static int maxWidth = 2;
-    private static synchronized Map<String, DeployedComponent> map(TemplateCommand tc) {
-        Map<String, DeployedComponent> m = svcMap;
-        if (m == null) {
-            svcMap = m = new LinkedHashMap<>();
-            tc.runCommand((line, isError) -> {
-                int colon = line.indexOf(':');
-                if (colon > 4) {
-                    String key = line.substring(0, colon).trim(); // fix Issue #2
-                    String value = line.substring(colon + 1).trim();
-                    switch (key) {
-                        case "Component Name":
-                            current = new DeployedComponent(value);
-                            int len = current.name.length();
-                            if (len > maxWidth) maxWidth = len;
-                            svcMap.put(value.toLowerCase(), current);
-                            break;
-                        case "Version":
-                            if (current != null) current.version = value;
-                            break;
-                        case "State":
-                            if (current != null) current.state = value;
-                            break;
-                        case "Configuration":
-                            if (current != null && !value.equals("null")
-                                    && !value.equals("{}"))
-                                current.configuration = value;
-                            break;
-                        default:
-                            if (tc.verbose)
-                                System.err.println(
-                                        "Unexpect component list element: " + key);
-                            break;
-                    }
+    private static Path logFile(TemplateCommand tc) {
+        return Paths.get(tc.getGgcRootPath(), "logs", "greengrass.log");
+    }
+    private static final Object refreshLock = new Object();
+    private static Snapshot refresh(TemplateCommand tc, Snapshot stale) {
+        synchronized (refreshLock) {
+            Snapshot s = snapshot;
+            if (s != null && s != stale)
+                return s; // someone else just did it
+            long logSize = logSize(logFile(tc));
+            Map<String, DeployedComponent> m = new LinkedHashMap<>();
+            boolean ok = list(tc, m);
+            if (!ok && stale != null)
+                return stale; // better than nothing, for now
+            s = new Snapshot(System.currentTimeMillis(), logSize,
+                    Collections.unmodifiableMap(m));
+            if (!ok) return s; // ask again next time
+            snapshot = s;
+            if (!tc.dryrun) s.save();
+            return s;
+        }
+    }
+    private static Thread refresher = null;
+    private static synchronized void refreshInBackground(TemplateCommand tc) {
+        if (refresher != null && refresher.isAlive()) return;
+        Snapshot stale = snapshot;
+        refresher = new Thread(() -> refresh(tc, stale), "component-list");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+    private static boolean list(TemplateCommand tc, Map<String, DeployedComponent> m) {
+        DeployedComponent[] current = {null};
+        return tc.runCommand((l, isError) -> {
+            String line = l.toString();
+            int colon = line.indexOf(':');
+            if (colon > 4) {
+                String key = line.substring(0, colon).trim(); // fix Issue #2
+                String value = line.substring(colon + 1).trim();
+                switch (key) {
+                    case "Component Name":
+                        current[0] = new DeployedComponent(value);
+                        m.put(value.toLowerCase(), current[0]);
+                        break;
+                    case "Version":
+                        if (current[0] != null) current[0].version = value;
+                        break;
+                    case "State":
+                        if (current[0] != null) current[0].state = value;
+                        break;
+                    case "Configuration":
+                        if (current[0] != null && !value.equals("null")
+                                && !value.equals("{}"))
+                            current[0].configuration = value;
+                        break;
+                    default:
+                        if (tc.verbose)
+                            System.err.println(
+                                    "Unexpect component list element: " + key);
+                        break;
+                }
+            }
+        },
+                "component", "list") == 0;
+    }
+    private static final int UNCHANGED = 0, STATE_CHANGED = 1, DEPLOYED = 2;
+    private static final int SCAN_LIMIT = 4 << 20;
+    private static long logSize(Path log) {
+        try {
+            return Files.size(log);
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+    private static class Snapshot {
+        final long time;
+        volatile long logOffset;
+        final Map<String, DeployedComponent> components;
+        Snapshot(long t, long lo, Map<String, DeployedComponent> c) {
+            time = t;
+            logOffset = lo;
+            components = c;
+        }
+        /* Look through what the nucleus has logged since this snapshot was
+         * taken for signs of deployments or state changes. */
+        int changes(Path log) {
+            long size = logSize(log);
+            long from = logOffset;
+            if (size < 0 || from < 0) return UNCHANGED; // can't tell, trust the TTL
+            if (size < from || size - from > SCAN_LIMIT) return DEPLOYED;
+            if (size == from) return UNCHANGED;
+            ByteBuffer buf = ByteBuffer.allocate((int) (size - from));
+            try (FileChannel fc = FileChannel.open(log, StandardOpenOption.READ)) {
+                while (buf.hasRemaining() && fc.read(buf, from + buf.position()) > 0) {
+                }
+            } catch (IOException ex) {
+                return UNCHANGED;
+            }
+            buf.flip();
+            String added = StandardCharsets.ISO_8859_1.decode(buf).toString();
+            if (added.contains("eployment"))
+                return DEPLOYED;
+            if (added.contains("service-report-state"))
+                return STATE_CHANGED;
+            logOffset = size; // nothing interesting in there: skip it next time
+            return UNCHANGED;
+        }
+        static Snapshot load() {
+            Properties p = new Properties();
+            try (Reader in = Files.newBufferedReader(cacheFile)) {
+                p.load(in);
+                Map<String, DeployedComponent> m = new LinkedHashMap<>();
+                int n = Integer.parseInt(p.getProperty("count", "0"));
+                for (int i = 0; i < n; i++) {
+                    DeployedComponent c = new DeployedComponent(p.getProperty(i + ".name"));
+                    c.version = p.getProperty(i + ".version", c.version);
+                    c.state = p.getProperty(i + ".state", c.state);
+                    c.configuration = p.getProperty(i + ".configuration");
+                    m.put(c.name.toLowerCase(), c);
+                }
+                return new Snapshot(Long.parseLong(p.getProperty("time")),
+                        Long.parseLong(p.getProperty("logOffset", "-1")),
+                        Collections.unmodifiableMap(m));
+            } catch (IOException | RuntimeException ex) {
+                return null;
+            }
+        }
+        void save() {
+            Properties p = new Properties();
+            p.setProperty("time", Long.toString(time));
+            p.setProperty("logOffset", Long.toString(logOffset));
+            p.setProperty("count", Integer.toString(components.size()));
+            int i = 0;
+            for (DeployedComponent c : components.values()) {
+                p.setProperty(i + ".name", c.name);
+                p.setProperty(i + ".version", c.version);
+                p.setProperty(i + ".state", c.state);
+                if (c.configuration != null)
+                    p.setProperty(i + ".configuration", c.configuration);
+                i++;
+            }
+            // The configuration came from a sudo-only command: only the
+            // user gets to read it
+            Path tmp = null;
+            try {
+                tmp = Files.createTempFile(cacheFile.getParent(), ".ggq.components", ".tmp",
+                        PosixFilePermissions.asFileAttribute(
+                                PosixFilePermissions.fromString("rw-------")));
+                try (Writer out = Files.newBufferedWriter(tmp)) {
+                    p.store(out, "greengrass-cli component list");
+                }
+                Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | UnsupportedOperationException ex) {
+                if (tmp != null) try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ex2) {
                 }
-            },
-                    "component", "list");
+            }
         }
-        return m;
     }
-    private static DeployedComponent current = null;
     public static void dump(TemplateCommand tc) {
-        map(tc); // trigger maxWidth calc
+        Map<String, DeployedComponent> m = map(tc, true);
+        int maxWidth = 2;
+        for (DeployedComponent ds : m.values())
+            maxWidth = Math.max(maxWidth, ds.name.length());
         String fmt = "%-" + maxWidth // Yes, I am this anal
                 + "s %-10s %s\n";
-        forEach(tc, ds -> {
+        m.values().forEach(ds -> {
             System.out.printf(fmt, ds.name, ds.version, ds.state);
             if(ds.configuration != null)
                 System.out.println("\t"+ds.configuration);
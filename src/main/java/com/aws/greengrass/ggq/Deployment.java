@@ -0,0 +1,166 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Collects everything one ggq run wants to change on the device: components
+ * built by one or more TemplateCommands, configuration updates and
+ * removals. They are handed to the nucleus as a single local deployment,
+ * so it only has to reconcile once.
+ * greengrass-cli only takes one recipe and one artifact directory, so when
+ * the components were built into different directories, they get linked
+ * into a common staging directory first.
+ */
+public class Deployment {
+    private final TemplateCommand tc;
+    private final Set<Path> recipeDirs = new LinkedHashSet<>();
+    private final Set<Path> artifactDirs = new LinkedHashSet<>();
+    private final Map<String, String> merges = new TreeMap<>();
+    private final Map<String, StringBuilder> config = new TreeMap<>();
+    private final Set<String> removals = new TreeSet<>();
+    private final List<String> params = new ArrayList<>();
+    private String group;
+    public Deployment(TemplateCommand cmd) {
+        tc = cmd;
+    }
+    public synchronized Deployment add(Path recipeDir, Path artifactDir, String name, String version) {
+        recipeDirs.add(recipeDir);
+        artifactDirs.add(artifactDir);
+        merges.put(name, version);
+        return this;
+    }
+    /**
+     * Merge key=value into the configuration of an installed component. A
+     * version of the component that's built into this deployment takes
+     * precedence over the installed one.
+     */
+    public synchronized Deployment config(String component, String installedVersion, String key, String value) {
+        StringBuilder comps = config.computeIfAbsent(component, n -> new StringBuilder());
+        if (comps.length() > 0) comps.append(",\n\t");
+        Main.addKV(comps, key, value);
+        merges.putIfAbsent(component, installedVersion);
+        return this;
+    }
+    public synchronized Deployment remove(String component) {
+        removals.add(component);
+        return this;
+    }
+    public synchronized Deployment param(String p) {
+        params.add(p);
+        return this;
+    }
+    public synchronized Deployment group(String g) {
+        if (!TemplateCommand.isEmpty(g))
+            group = g;
+        return this;
+    }
+    public synchronized boolean isEmpty() {
+        return merges.isEmpty() && removals.isEmpty();
+    }
+    public synchronized void deploy() {
+        if (isEmpty()) return;
+        Deque<String> args = new LinkedList<>();
+        args.add("--ggcRootPath");
+        args.add(tc.getGgcRootPath());
+        args.add("deployment");
+        args.add("create");
+        if (!recipeDirs.isEmpty()) {
+            args.add("-r");
+            args.add(single(recipeDirs, "recipes").toString());
+            args.add("-a");
+            args.add(single(artifactDirs, "artifacts").toString());
+        }
+        if (!config.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append('{');
+            config.forEach((k, v) -> {
+                if (sb.length() > 1) sb.append(",\n");
+                Main.quote(sb, k);
+                sb.append(": { \"MERGE\": {")
+                        .append(v)
+                        .append(" } }");
+            });
+            sb.append('}');
+            args.add("--update-config");
+            args.add(sb.toString());
+        }
+        if (!removals.isEmpty()) {
+            args.add("--remove");
+            args.add(String.join(",", removals));
+        }
+        merges.forEach((name, version) -> {
+            args.add("-m");
+            args.add(name + "=" + version);
+        });
+        if (group != null) {
+            args.add("-g");
+            args.add(group);
+        }
+        params.forEach(s -> {
+            args.add("-p");
+            args.add(s);
+        });
+        System.out.append(tc.dryrun ? "DryRun" : "Executing").
+                append(": greengrass-cli");
+        args.forEach(s -> System.out.append(' ').append(s));
+        System.out.println();
+        if (!tc.dryrun) {
+            int rc = tc.runCommand(args);
+            DeployedComponent.invalidate();
+            if (rc != 0)
+                tc.err("cli.tpl.deploy", null);
+        }
+        recipeDirs.clear();
+        artifactDirs.clear();
+        merges.clear();
+        config.clear();
+        removals.clear();
+    }
+    /* The one directory that holds everything in dirs: either the only
+     * one, or a staging directory that mirrors all of them with links. */
+    private Path single(Set<Path> dirs, String kind) {
+        if (dirs.size() == 1)
+            return dirs.iterator().next();
+        Path staging = tc.getGenTemplateDir().resolve(".deploy").resolve(kind);
+        try {
+            clear(staging);
+            Files.createDirectories(staging);
+            for (Path dir : dirs)
+                if (Files.isDirectory(dir))
+                    try (Stream<Path> s = Files.walk(dir)) {
+                    for (Path src : (Iterable<Path>) s::iterator) {
+                        Path dst = staging.resolve(dir.relativize(src).toString());
+                        if (Files.isDirectory(src))
+                            Files.createDirectories(dst);
+                        else if (!Files.exists(dst))
+                            link(src, dst);
+                    }
+                }
+        } catch (IOException ex) {
+            tc.err("cli.tpl.cnc", ex);
+        }
+        return staging;
+    }
+    private static void link(Path src, Path dst) throws IOException {
+        try {
+            Files.createLink(dst, src);
+        } catch (IOException | UnsupportedOperationException ex) {
+            // different filesystem, or no hard links: fall back to a copy
+            Files.copy(src, dst);
+        }
+    }
+    private static void clear(Path dir) throws IOException {
+        if (Files.isDirectory(dir))
+            try (Stream<Path> s = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+}
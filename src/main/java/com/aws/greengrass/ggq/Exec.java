@@ -86,15 +86,14 @@ public final class Exec implements Closeable {
     IntConsumer whenDone;
     Consumer<CharSequence> stdout = NOP;
     Consumer<CharSequence> stderr = NOP;
-    AtomicInteger numberOfCopiers;
     private String[] environment = defaultEnvironment;
     private String[] cmds;
 
     private File dir = userdir;
     private long timeout = -1;
     private TimeUnit timeunit = TimeUnit.SECONDS;
-    private Copier stderrc;
-    private Copier stdoutc;
+    private LinePump stderrc;
+    private LinePump stdoutc;
 
     public static void setDefaultEnv(String key, CharSequence value) {
         defaultEnvironment = setenv(defaultEnvironment, key, value, false);
@@ -145,7 +144,7 @@ public final class Exec implements Closeable {
 
     public boolean successful(boolean ignoreStderr) throws InterruptedException, IOException {
         exec();
-        return (ignoreStderr || stderrc.getNlines() == 0) && process.exitValue() == 0;
+        return (ignoreStderr || stderrc.getLines() == 0) && process.exitValue() == 0;
     }
 
     /**
@@ -318,10 +317,10 @@ public final class Exec implements Closeable {
         }
         final String[] command = getCommand();
         process = Runtime.getRuntime().exec(command, environment, dir);
-        stderrc = new Copier(process.getErrorStream(), stderr);
-        stdoutc = new Copier(process.getInputStream(), stdout);
-        stderrc.start();
-        stdoutc.start();
+        // The output is pumped by the shared LinePump threads
+        stderrc = pump(process.getErrorStream(), stderr);
+        stdoutc = pump(process.getInputStream(), stdout);
+        CompletableFuture<Void> drained = CompletableFuture.allOf(stderrc.start(), stdoutc.start());
         if (whenDone == null) {
             try {
                 if (timeout < 0) {
@@ -341,10 +340,21 @@ public final class Exec implements Closeable {
                 }
                 throw ie;
             }
-            stderrc.join(5000);
-            stdoutc.join(5000);
+            try {
+                drained.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException ignore) {
+                // Whatever output there was has been delivered
+            }
             return Optional.of(process.exitValue());
         }
+        drained.whenComplete((v, ex) -> {
+            try {
+                process.waitFor();
+                setClosed();
+            } catch (InterruptedException ignore) {
+                // Ignore as this thread is done running anyway
+            }
+        });
         return Optional.empty();
     }
 
@@ -403,64 +413,11 @@ public final class Exec implements Closeable {
         return Utils.deepToString(cmds, 90).toString();
     }
 
-    /**
-     * Sends the lines of an InputStream to a consumer in the background.
-     */
-    private class Copier extends Thread {
-        private final Consumer<CharSequence> out;
-        private final InputStream in;
-        private int nlines = 0;
-
-        Copier(InputStream i, Consumer<CharSequence> s) {
-            super("Copier");
-            in = i;
-            out = s;
-            // Set as a daemon thread so that it dies when the main thread exits
-            setDaemon(true);
-            if (whenDone != null) {
-                if (numberOfCopiers == null) {
-                    numberOfCopiers = new AtomicInteger(1);
-                } else {
-                    numberOfCopiers.incrementAndGet();
-                }
-            }
-        }
-        
-        public int getNlines() { return nlines; }
-
-        @Override
-        public void run() {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 200)) {
-                StringBuilder sb = new StringBuilder();
-                while (true) {
-                    int c;
-                    for (c = br.read(); c >= 0 && c != '\n'; c = br.read()) {
-                        sb.append((char) c);
-                    }
-                    if (c >= 0) {
-                        sb.append('\n');
-                        nlines++;
-                    }
-                    if (out != null && sb.length() > 0) {
-                        out.accept(sb);
-                    }
-                    sb.setLength(0);
-                    if (c < 0) {
-                        break;
-                    }
-                }
-            } catch (Throwable ignore) {
-                // nothing that can go wrong here worries us, they're
-                // all EOFs
+    private static LinePump pump(InputStream in, Consumer<CharSequence> out) {
+        return new LinePump(in, (line, error) -> {
+            if (out != null) {
+                out.accept(line);
             }
-            if (whenDone != null && numberOfCopiers.decrementAndGet() <= 0) {
-                try {
-                    process.waitFor();
-                    setClosed();
-                } catch (InterruptedException ignore) {
-                    // Ignore as this thread is done running anyway and will exit
-                }
-            }
-        }
+        }, false).keepEnds();
     }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Runs Execs in the background, each as a CompletableFuture of its Result,
+ * with at most maxInFlight processes running at once; the rest wait their
+ * turn in submission order. There can be a timeout for each command, and a
+ * budget for all of them together: whichever runs out first gets the
+ * process and its descendants destroyed, then destroyed forcibly if
+ * they're still there a few seconds later. Cancelling a future does the
+ * same. (Descendants need Java 9; on 8 it's just the process.)
+ * <p>
+ * Each Result has the command's wall time and, where there's a /proc to
+ * read it from, its CPU time (and that of the children it waited for). A
+ * process's CPU time can't be read once it has gone, so it's sampled
+ * while it runs and the last sample is what's reported.
+ */
+public class ExecRunner implements Closeable {
+    public static class Result {
+        public final String command;
+        public final int exitCode;
+        public final long wallNanos;
+        public final long cpuMillis; // -1 if it couldn't be measured
+        public final boolean timedOut;
+        Result(String c, int e, long w, long cpu, boolean t) {
+            command = c;
+            exitCode = e;
+            wallNanos = w;
+            cpuMillis = cpu;
+            timedOut = t;
+        }
+        public boolean ok() {
+            return exitCode == 0 && !timedOut;
+        }
+        @Override
+        public String toString() {
+            return String.format("%s: %s after %.2fs%s", command,
+                    timedOut ? "timed out" : "exit " + exitCode, wallNanos / 1e9,
+                    cpuMillis < 0 ? "" : String.format(" (%.2fs cpu)", cpuMillis / 1e3));
+        }
+    }
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "exec-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final long TICKS_PER_SECOND = 100; // USER_HZ, on every Linux that matters
+    private final int maxInFlight;
+    private long timeoutNanos = -1;
+    private long deadline = Long.MAX_VALUE; // System.nanoTime()
+    long graceMillis = 5000;
+    long sampleMillis = 100;
+    private final Deque<Job> waiting = new ArrayDeque<>();
+    private final Set<Job> running = new HashSet<>();
+    private boolean closed;
+    public ExecRunner(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+    /** How long each command gets, from when it starts */
+    public ExecRunner timeout(long t, TimeUnit u) {
+        timeoutNanos = u.toNanos(t);
+        return this;
+    }
+    /** How long all the commands get, from now */
+    public ExecRunner budget(long t, TimeUnit u) {
+        deadline = System.nanoTime() + u.toNanos(t);
+        return this;
+    }
+    public synchronized int getInFlight() {
+        return running.size();
+    }
+    public CompletableFuture<Result> submit(Exec e) {
+        Job j = new Job(e);
+        j.future.whenComplete((r, ex) -> {
+            if (j.future.isCancelled()) j.kill();
+        });
+        synchronized (this) {
+            if (closed) j.future.cancel(true);
+            else waiting.add(j);
+        }
+        dispatch();
+        return j.future;
+    }
+    /** Run them all: the results are in the same order as the commands */
+    public CompletableFuture<List<Result>> runAll(Collection<Exec> execs) {
+        List<CompletableFuture<Result>> l = execs.stream().map(this::submit)
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(l.toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> l.stream().map(CompletableFuture::join)
+                .collect(Collectors.toList()));
+    }
+    /** Cancel everything, running or not */
+    @Override
+    public void close() {
+        List<Job> all;
+        synchronized (this) {
+            closed = true;
+            all = new ArrayList<>(waiting);
+            all.addAll(running);
+            waiting.clear();
+        }
+        for (Job j : all)
+            j.future.cancel(true);
+    }
+    private void dispatch() {
+        List<Job> start = new ArrayList<>();
+        synchronized (this) {
+            while (running.size() < maxInFlight && !waiting.isEmpty()) {
+                Job j = waiting.poll();
+                if (j.future.isDone()) continue; // cancelled while it waited
+                running.add(j);
+                start.add(j);
+            }
+        }
+        // Outside the lock: starting a process takes a while
+        for (Job j : start)
+            j.start();
+    }
+    private void finished(Job j) {
+        synchronized (this) {
+            running.remove(j);
+        }
+        dispatch();
+    }
+    private class Job {
+        final Exec exec;
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        private long started;
+        private long pid = -1;
+        private volatile long cpuMillis = -1;
+        private volatile boolean timedOut;
+        private ScheduledFuture<?> sampler, killer;
+        private boolean over;
+        Job(Exec e) {
+            exec = e;
+        }
+        void start() {
+            started = System.nanoTime();
+            long limit = timeoutNanos < 0 ? deadline : Math.min(deadline, started + timeoutNanos);
+            if (limit <= started) {
+                timedOut = true;
+                done(-1);
+                return;
+            }
+            try {
+                exec.background(this::done);
+            } catch (IOException | InterruptedException ex) {
+                future.completeExceptionally(ex);
+                finished(this);
+                return;
+            }
+            pid = pid(exec.getProcess());
+            synchronized (this) {
+                if (over) return;
+                if (pid > 0 && Files.isReadable(Paths.get("/proc/" + pid + "/stat")))
+                    sampler = timer.scheduleWithFixedDelay(this::sample, 0, sampleMillis,
+                            TimeUnit.MILLISECONDS);
+                if (limit != Long.MAX_VALUE)
+                    killer = timer.schedule(() -> {
+                        timedOut = true;
+                        kill();
+                    }, limit - started, TimeUnit.NANOSECONDS);
+            }
+            if (future.isCancelled()) kill(); // while it was starting
+        }
+        private void sample() {
+            long cpu = cpu(pid);
+            if (cpu >= 0) cpuMillis = cpu;
+        }
+        void done(int exit) {
+            synchronized (this) {
+                if (over) return;
+                over = true;
+                if (sampler != null) sampler.cancel(false);
+                if (killer != null) killer.cancel(false);
+            }
+            future.complete(new Result(exec.toString(), exit, System.nanoTime() - started,
+                    cpuMillis, timedOut));
+            finished(this);
+        }
+        void kill() {
+            Process p = exec.getProcess();
+            if (p == null || !p.isAlive()) return;
+            destroy(p, false);
+            timer.schedule(() -> {
+                if (p.isAlive()) destroy(p, true);
+            }, graceMillis, TimeUnit.MILLISECONDS);
+            // Something that escaped could still be holding its output open
+            timer.schedule(() -> {
+                if (!p.isAlive()) done(p.exitValue());
+            }, 2 * graceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    static void destroy(Process p, boolean forcibly) {
+        try { // Java 9 and up: the children first, or they'd get away
+            Object[] children = ((Stream<?>) Process.class.getMethod("descendants")
+                    .invoke(p)).toArray();
+            Method m = Class.forName("java.lang.ProcessHandle")
+                    .getMethod(forcibly ? "destroyForcibly" : "destroy");
+            for (Object h : children)
+                m.invoke(h);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+        }
+        if (forcibly) p.destroyForcibly();
+        else p.destroy();
+    }
+    /** @return the process id, or -1 if this JVM won't say */
+    static long pid(Process p) {
+        if (p == null) return -1;
+        try { // Java 9 and up
+            return (Long) Process.class.getMethod("pid").invoke(p);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+        }
+        try { // Java 8's UNIXProcess
+            Field f = p.getClass().getDeclaredField("pid");
+            f.setAccessible(true);
+            return f.getInt(p);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return -1;
+        }
+    }
+    /** @return the CPU time of pid and its waited for children, in millis,
+     * or -1 if it can't be read */
+    static long cpu(long pid) {
+        try {
+            String s = new String(Files.readAllBytes(Paths.get("/proc/" + pid + "/stat")),
+                    StandardCharsets.US_ASCII);
+            // The fields after "pid (comm) ", which may have spaces in comm
+            String[] f = s.substring(s.lastIndexOf(')') + 2).split(" ");
+            long ticks = Long.parseLong(f[11]) + Long.parseLong(f[12])
+                    + Long.parseLong(f[13]) + Long.parseLong(f[14]);
+            return ticks * 1000 / TICKS_PER_SECOND;
+        } catch (IOException | RuntimeException ex) {
+            return -1;
+        }
+    }
+}
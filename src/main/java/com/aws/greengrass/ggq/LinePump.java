@@ -0,0 +1,134 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Splits what a process writes into lines for a LineReceiver. It reads a
+ * block at a time, finds the line ends in the bytes, and decodes each line
+ * as UTF-8 into one CharBuffer that's reused for every line, so a long
+ * listing doesn't cost a String per line (or a call per byte).
+ * <p>
+ * Pumps run on one shared pool of daemon threads rather than on threads of
+ * their own, so running one command after another reuses the same couple
+ * of threads. Reads from a process block, so the pool grows when more
+ * streams than that are open at once (a fixed size pool could leave a
+ * process stuck on a full pipe nobody is reading) and idle threads go away
+ * after a minute. The lines of each stream are delivered in order, on one
+ * thread at a time, and the future from start() completes after the last.
+ */
+public class LinePump implements Runnable {
+    private static final AtomicInteger threads = new AtomicInteger();
+    private static final ExecutorService pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "pump-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    private final InputStream in;
+    private final boolean error;
+    private final LineReceiver lr;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private boolean keepEnds;
+    private volatile int lines;
+    private byte[] buf = new byte[8192];
+    private ByteBuffer bytes = ByteBuffer.wrap(buf);
+    private CharBuffer chars = CharBuffer.allocate(buf.length);
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    public LinePump(InputStream inputStream, LineReceiver lineReceiver, boolean b) {
+        in = inputStream;
+        lr = lineReceiver;
+        error = b;
+    }
+    /**
+     * Lines end at '\n' only, and are delivered with it, empty ones and
+     * all: the way Exec has always handed them out.
+     */
+    public LinePump keepEnds() {
+        keepEnds = true;
+        return this;
+    }
+    /** How many complete lines there have been */
+    public int getLines() {
+        return lines;
+    }
+    public CompletableFuture<Void> start() {
+        pool.execute(this);
+        return done;
+    }
+    /**
+     * Pump both of p's output streams into lr.
+     * @return p's exit code, once it has exited and all its output is in
+     */
+    public static CompletableFuture<Integer> pump(Process p, LineReceiver lr) {
+        return CompletableFuture.allOf(
+                new LinePump(p.getInputStream(), lr, false).start(),
+                new LinePump(p.getErrorStream(), lr, true).start())
+                .thenApply(v -> {
+                    try {
+                        return p.waitFor();
+                    } catch (InterruptedException ex) {
+                        throw new CompletionException(ex);
+                    }
+                });
+    }
+    @Override
+    public void run() {
+        try {
+            int have = 0; // bytes of an unfinished line at the start of buf
+            int got;
+            while ((got = in.read(buf, have, buf.length - have)) >= 0) {
+                int end = have + got, start = 0;
+                for (int i = have; i < end; i++) {
+                    byte c = buf[i];
+                    if (c == '\n') lines++;
+                    if (c == '\n' || c == '\r' && !keepEnds) {
+                        line(start, keepEnds ? i + 1 : i);
+                        start = i + 1;
+                    }
+                }
+                have = end - start;
+                if (have == buf.length) {
+                    buf = Arrays.copyOf(buf, 2 * buf.length);
+                    bytes = ByteBuffer.wrap(buf);
+                } else if (start > 0 && have > 0)
+                    System.arraycopy(buf, start, buf, 0, have);
+            }
+            line(0, have);
+        } catch (IOException ex) {
+        } catch (RuntimeException ex) {
+            done.completeExceptionally(ex);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+            }
+            done.complete(null);
+        }
+    }
+    /* Hand buf[start..end) to the receiver, unless it's empty */
+    private void line(int start, int end) {
+        if (end <= start) return;
+        if (chars.capacity() < end - start)
+            chars = CharBuffer.allocate(buf.length);
+        bytes.clear();
+        bytes.position(start);
+        bytes.limit(end);
+        chars.clear();
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        lr.accept(chars, error);
+    }
+}
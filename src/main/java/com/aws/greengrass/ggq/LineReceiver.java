@@ -5,6 +5,9 @@
 package com.aws.greengrass.ggq;
 
 public interface LineReceiver {
-    public void accept(String line, boolean error);
-    
+    /**
+     * The line is only good for the duration of the call: it may be a view
+     * of a buffer that's about to be reused. Use toString() to keep it.
+     */
+    public void accept(CharSequence line, boolean error);
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+/**
+ * Rules that make --watch do something when the logs say so. A rule is a
+ * list of key=value settings separated by semicolons, for example
+ * <pre>
+ * name=flapping; service=com.example.*; state=STARTING; count=4; within=1m; exec=notify-send "$GGQ_SERVICE is flapping"
+ * </pre>
+ * What to look for: service (globs, comma separated), level (and above),
+ * event (eventType), state (the new state of a service-report-state) and
+ * match (a regular expression found in the message); each a regular
+ * expression except service and level. How often: count lines within a
+ * duration, per service. What to do: exec a shell command, with
+ * GGQ_RULE, GGQ_SERVICE, GGQ_COUNT and GGQ_MESSAGE set, or append a line
+ * to a file or FIFO with fifo=path. Either way, it's noted in the output
+ * too. exec and fifo take the rest of the line, semicolons and all.
+ * <p>
+ * Rules are compiled once and checked against every line on the workers'
+ * threads; the actions are taken on a thread of their own, so a FIFO
+ * nobody is reading can't hold up the watching, and commands go to an
+ * ExecRunner: at most alertJobs (2) at once, for at most a minute each.
+ * Lines older than the rule's window (or a minute) when they're seen
+ * don't set anything off, so starting a watch doesn't replay old alarms.
+ */
+public class LogAlerts {
+    public static class Rule {
+        final String text;
+        String name;
+        private LogFilter services;
+        int minLevel;
+        Pattern event, state, match;
+        int count = 1;
+        long within = 60000;
+        String exec, fifo;
+        private final Map<String, ArrayDeque<Long>> hits = new HashMap<>();
+        Rule(String t) {
+            text = t;
+            name = t;
+        }
+        boolean matches(LogRecord r) {
+            return r.serviceName != null
+                    && (services == null || services.service(r.serviceName))
+                    && LogIndex.level(r.level) >= minLevel
+                    && (event == null || event.matcher(r.eventType).matches())
+                    && (state == null || "service-report-state".equals(r.eventType)
+                    && state.matcher(r.newState).matches())
+                    && (match == null || match.matcher(r.message).find());
+        }
+        /* @return how many hits there have been within the window, once
+         * that reaches count; otherwise 0 */
+        synchronized int hit(String service, long at) {
+            ArrayDeque<Long> q = hits.computeIfAbsent(service, s -> new ArrayDeque<>());
+            q.addLast(at);
+            while (!q.isEmpty() && q.peekFirst() <= at - within)
+                q.removeFirst();
+            if (q.size() < count) return 0;
+            int n = q.size();
+            q.clear(); // it takes count more to go off again
+            return n;
+        }
+    }
+    private final List<Rule> rules = new ArrayList<>();
+    private final ExecutorService actions = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "watch-alerts");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecRunner runner = new ExecRunner(Integer.parseInt(Main
+            .getPreference("alertJobs", "2"))).timeout(60, TimeUnit.SECONDS);
+    private Consumer<String> notes = System.out::println;
+    LongSupplier clock = System::currentTimeMillis;
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+    /** Where to say that a rule went off: only ever called on the one
+     * action thread */
+    public void notes(Consumer<String> n) {
+        notes = n;
+    }
+    public LogAlerts add(String text) {
+        rules.add(rule(text));
+        return this;
+    }
+    /** One rule per line; blank lines and lines starting with # are skipped */
+    public LogAlerts load(Path file) throws IOException {
+        for (String l : Files.readAllLines(file, StandardCharsets.UTF_8))
+            if (!(l = l.trim()).isEmpty() && !l.startsWith("#")) add(l);
+        return this;
+    }
+    static Rule rule(String text) {
+        Rule r = new Rule(text);
+        String rest = text;
+        while (!(rest = rest.trim()).isEmpty()) {
+            int eq = rest.indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Expected key=value in alert: " + text);
+            String key = rest.substring(0, eq).trim();
+            rest = rest.substring(eq + 1);
+            String value;
+            int semi = rest.indexOf(';');
+            if (key.equals("exec") || key.equals("fifo") || semi < 0) {
+                value = rest.trim();
+                rest = "";
+            } else {
+                value = rest.substring(0, semi).trim();
+                rest = rest.substring(semi + 1);
+            }
+            try {
+                switch (key) {
+                    case "name": r.name = value;
+                        break;
+                    case "service": r.services = new LogFilter().services(value);
+                        break;
+                    case "level": r.minLevel = new LogFilter().level(value).minLevel;
+                        break;
+                    case "event": r.event = Pattern.compile(value);
+                        break;
+                    case "state": r.state = Pattern.compile(value);
+                        break;
+                    case "match": r.match = Pattern.compile(value);
+                        break;
+                    case "count": r.count = Math.max(1, Integer.parseInt(value));
+                        break;
+                    case "within":
+                        r.within = LogFilter.parseDuration(value);
+                        if (r.within <= 0) throw new IllegalArgumentException("Not a duration: " + value);
+                        break;
+                    case "exec": r.exec = value;
+                        break;
+                    case "fifo": r.fifo = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown alert setting " + key + " in: " + text);
+                }
+            } catch (PatternSyntaxException | NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad " + key + " in alert: " + text);
+            }
+        }
+        return r;
+    }
+    /** Called by the workers with each line they decode */
+    public void check(LogRecord r) {
+        if (rules.isEmpty()) return;
+        long now = clock.getAsLong();
+        for (Rule rule : rules)
+            if (rule.matches(r) && r.timestamp > now - rule.within) {
+                int n = rule.hit(r.serviceName, r.timestamp);
+                if (n > 0) {
+                    String service = r.serviceName;
+                    String message = r.message.isEmpty() ? r.newState : r.message;
+                    actions.execute(() -> fire(rule, service, n, message));
+                }
+            }
+    }
+    private void fire(Rule rule, String service, int n, String message) {
+        String what = "[alert " + rule.name + "] " + service
+                + (n > 1 ? " (" + n + " times)" : "") + ": " + message;
+        notes.accept(what);
+        if (rule.fifo != null)
+            try {
+                Files.write(Paths.get(rule.fifo), (what + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                notes.accept("[alert " + rule.name + "] " + ex);
+            }
+        if (rule.exec != null)
+            runner.submit(new Exec().withExec("sh", "-c", rule.exec)
+                    .setenv("GGQ_RULE", rule.name)
+                    .setenv("GGQ_SERVICE", service)
+                    .setenv("GGQ_COUNT", String.valueOf(n))
+                    .setenv("GGQ_MESSAGE", message)
+                    .withOut(l -> say(l.toString().trim()))
+                    .withErr(l -> say(l.toString().trim())))
+                    .whenComplete((r, ex) -> {
+                        if (ex != null) say("[alert " + rule.name + "] " + ex);
+                        else if (!r.ok()) say("[alert " + rule.name + "] " + r);
+                    });
+    }
+    /* From any thread */
+    private void say(String s) {
+        actions.execute(() -> notes.accept(s));
+    }
+}
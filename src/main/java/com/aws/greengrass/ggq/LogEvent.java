@@ -0,0 +1,43 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * One thing for the watcher to print, decoded from a log line by the
+ * worker for its file. A tag of 0 marks a note rather than a log entry:
+ * its message is printed as it is.
+ */
+public class LogEvent implements Comparable<LogEvent> {
+    private static final AtomicLong sequence = new AtomicLong();
+    public final long timestamp;
+    public final String source, service, level, eventType, message;
+    public final char tag;
+    public final List<String> detail;
+    final long arrived = System.nanoTime();
+    final long seq = sequence.incrementAndGet();
+    public LogEvent(long timestamp, String source, String service, String level,
+            String eventType, char tag, String message, List<String> detail) {
+        this.timestamp = timestamp;
+        this.source = source;
+        this.service = service;
+        this.level = level;
+        this.eventType = eventType;
+        this.tag = tag;
+        this.message = message;
+        this.detail = detail;
+    }
+    public static LogEvent note(String source, String message) {
+        return new LogEvent(System.currentTimeMillis(), source, "", "", "",
+                (char) 0, message, Collections.emptyList());
+    }
+    @Override
+    public int compareTo(LogEvent o) {
+        int c = Long.compare(timestamp, o.timestamp);
+        return c != 0 ? c : Long.compare(seq, o.seq);
+    }
+}
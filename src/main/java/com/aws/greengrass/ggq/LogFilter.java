@@ -0,0 +1,123 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.time.*;
+import java.time.format.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Which log lines --watch shows: --since, --service, --level and --grep.
+ * The default lets everything through. It's checked on every line before
+ * anything is done to it, so it's kept cheap: the answer for each service
+ * name is only worked out once.
+ */
+public class LogFilter {
+    long since = Long.MIN_VALUE;
+    int minLevel = 0;
+    private Pattern services;
+    private Pattern grep;
+    private final ConcurrentMap<String, Boolean> serviceCache = new ConcurrentHashMap<>();
+    public boolean isEmpty() {
+        return since == Long.MIN_VALUE && minLevel == 0 && services == null
+                && grep == null;
+    }
+    /**
+     * Either a duration back from now (90s, 10m, 2h, 1d; plain numbers are
+     * minutes) or a time, like 2021-03-01T10:00 (local) or
+     * 2021-03-01T10:00:00Z.
+     */
+    public LogFilter since(String s) {
+        since = parseSince(s, System.currentTimeMillis());
+        return this;
+    }
+    static long parseSince(String s, long now) {
+        long d = parseDuration(s);
+        if (d >= 0) return now - d;
+        try {
+            return Instant.parse(s).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+        }
+        try {
+            return LocalDateTime.parse(s).atZone(ZoneId.systemDefault())
+                    .toInstant().toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            throw new IllegalArgumentException("Not a time or a duration: " + s);
+        }
+    }
+    /** @return 90s, 10m, 2h or 1d in millis (plain numbers are minutes), or
+     * -1 if it isn't one of those */
+    static long parseDuration(String s) {
+        Matcher m = Pattern.compile("(\\d+)([smhd]?)").matcher(s.trim());
+        if (!m.matches()) return -1;
+        long n = Long.parseLong(m.group(1));
+        switch (m.group(2)) {
+            case "s": return n * 1000;
+            case "h": return n * 3600000;
+            case "d": return n * 86400000;
+            default: return n * 60000;
+        }
+    }
+    /** A comma separated list of service names, which may contain * and ? */
+    public LogFilter services(String globs) {
+        StringBuilder sb = new StringBuilder();
+        for (String g : globs.split(",")) {
+            if ((g = g.trim()).isEmpty()) continue;
+            if (sb.length() > 0) sb.append('|');
+            sb.append(glob(g));
+        }
+        services = sb.length() == 0 ? null : Pattern.compile(sb.toString());
+        serviceCache.clear();
+        return this;
+    }
+    static String glob(String g) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < g.length(); i++) {
+            char c = g.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) sb.append(Pattern.quote(g.substring(start, i)));
+                sb.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < g.length()) sb.append(Pattern.quote(g.substring(start)));
+        return sb.toString();
+    }
+    /** Lines at this level and above */
+    public LogFilter level(String level) {
+        minLevel = LogIndex.level(level);
+        if (minLevel == 2 && !"INFO".equalsIgnoreCase(level))
+            throw new IllegalArgumentException("Not a log level: " + level);
+        return this;
+    }
+    /** Lines whose message contains a match for this regular expression */
+    public LogFilter grep(String regex) {
+        try {
+            grep = Pattern.compile(regex);
+        } catch (PatternSyntaxException ex) {
+            throw new IllegalArgumentException("Bad pattern: " + ex.getMessage());
+        }
+        return this;
+    }
+    public boolean service(String s) {
+        if (services == null) return true;
+        if (s == null) s = "";
+        Boolean b = serviceCache.get(s);
+        if (b == null) {
+            b = services.matcher(s).matches();
+            serviceCache.put(s, b);
+        }
+        return b;
+    }
+    public boolean matches(long timestamp, String service, String level) {
+        return timestamp >= since && LogIndex.level(level) >= minLevel && service(service);
+    }
+    public boolean matches(LogRecord r) {
+        return matches(r.timestamp, r.serviceName, r.level)
+                && (grep == null || grep.matcher(r.message).find());
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Where the lines of one log file start, with their timestamp, service and
+ * level, so a question like "warnings from foo in the last ten minutes"
+ * can go straight to the lines that answer it. It's built by the
+ * watcher as it tails the file and kept next to the others in
+ * ~/.ggq.index.
+ * <p>
+ * The index file is a 24 byte header (magic, the identity of the log file
+ * it describes and how far the watcher has read it, which is where
+ * --follow picks up) followed by fixed size records: the line's offset and
+ * timestamp as longs, then an int holding the level in its top byte and
+ * the service's number in the rest. Service names are numbered in a
+ * sidecar file, one per line. Records are only ever appended, and queries
+ * map the file and binary search it by timestamp. If the log gets
+ * truncated or rotated the index is started over.
+ */
+public class LogIndex implements Closeable {
+    static final int RECORD = 20;
+    private static final int HEADER = 24;
+    private static final long MAGIC = 0x4747514944583032L; // GGQIDX02
+    public static final Path dir = Paths.get(Main.getPreference("logIndex",
+            Paths.get(System.getProperty("user.home", "/tmp"), ".ggq.index").toString()));
+    private static final String[] levels = {"TRACE", "DEBUG", "INFO", "WARN", "ERROR"};
+    public interface Hits {
+        void hit(long offset, long timestamp, String service, String level) throws IOException;
+    }
+    private final Path servicesFile;
+    private FileChannel ch;
+    private final ByteBuffer pending = ByteBuffer.allocate(RECORD * 512);
+    private final Map<String, Integer> serviceIds = new HashMap<>();
+    private final List<String> services = new ArrayList<>();
+    private long identity;
+    private long last = -1; // offset of the last line indexed
+    private long checkpoint = -1;
+    private final ByteBuffer checkpointBuf = ByteBuffer.allocate(8);
+    private long count;
+    /** The index for logs/name: one directory per nucleus root */
+    public static LogIndex of(Path logs, String name) throws IOException {
+        String root = logs.toAbsolutePath().normalize().toString();
+        return new LogIndex(dir.resolve(Long.toHexString(hash(root)))
+                .resolve(name + ".idx"));
+    }
+    LogIndex(Path f) throws IOException {
+        servicesFile = Paths.get(f + ".svc");
+        Files.createDirectories(f.getParent());
+        ch = FileChannel.open(f, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        /* Another watcher of the same log would truncate and append to it
+         * too, so whoever gets here second does without */
+        FileLock lock;
+        try {
+            lock = ch.tryLock();
+        } catch (OverlappingFileLockException ex) {
+            lock = null;
+        }
+        if (lock == null) {
+            ch.close();
+            throw new IOException(f + " is in use by another watcher");
+        }
+        ByteBuffer h = ByteBuffer.allocate(HEADER);
+        ch.read(h, 0);
+        h.flip();
+        if (h.remaining() < HEADER || h.getLong() != MAGIC) reset(0);
+        else {
+            identity = h.getLong();
+            checkpoint = h.getLong();
+            count = (ch.size() - HEADER) / RECORD;
+            ch.truncate(HEADER + count * RECORD); // drop a torn last record
+            if (Files.exists(servicesFile))
+                for (String s : Files.readAllLines(servicesFile, StandardCharsets.UTF_8)) {
+                    serviceIds.put(s, services.size());
+                    services.add(s);
+                }
+            if (count > 0) {
+                ByteBuffer last = ByteBuffer.allocate(RECORD);
+                ch.read(last, HEADER + (count - 1) * RECORD);
+                this.last = last.getLong(0);
+            }
+        }
+    }
+    static long hash(Object o) {
+        long h = 1125899906842597L;
+        String s = String.valueOf(o);
+        for (int i = 0; i < s.length(); i++)
+            h = 31 * h + s.charAt(i);
+        return h;
+    }
+    /**
+     * Make sure this index describes the log file with the given identity
+     * (LogTail's fileKey; null for the same one as before) and length,
+     * starting over if it doesn't.
+     */
+    public void check(Object fileKey, long length) throws IOException {
+        long id = fileKey == null ? identity : hash(fileKey);
+        if (id != identity || last >= length) reset(id);
+    }
+    private void reset(long id) throws IOException {
+        pending.clear();
+        identity = id;
+        last = -1;
+        checkpoint = -1;
+        count = 0;
+        ch.truncate(0);
+        ByteBuffer h = ByteBuffer.allocate(HEADER);
+        h.putLong(MAGIC).putLong(id).putLong(checkpoint).flip();
+        ch.write(h, 0);
+        services.clear();
+        serviceIds.clear();
+        Files.deleteIfExists(servicesFile);
+    }
+    /**
+     * Where to carry on reading the log file with the given identity and
+     * length: where the last reader got to if it's still the same file,
+     * the start if it was rotated since, and the end if there's no record
+     * of anyone having read it.
+     */
+    public long resumeFrom(Object fileKey, long length) {
+        if (checkpoint < 0) return length;
+        if (hash(fileKey) != identity || checkpoint > length) return 0;
+        return checkpoint;
+    }
+    /** Record that the log has been read up to offset */
+    public void checkpoint(long offset) throws IOException {
+        if (offset == checkpoint) return;
+        checkpointBuf.clear();
+        checkpointBuf.putLong(0, offset);
+        ch.write(checkpointBuf, 16);
+        checkpoint = offset;
+    }
+    /** @return where the last line indexed starts, or -1 */
+    public long getLast() {
+        return last;
+    }
+    public long size() {
+        return count + pending.position() / RECORD;
+    }
+    /** Lines at offsets that are already indexed are ignored */
+    public void add(long offset, long timestamp, String service, String level) throws IOException {
+        if (offset <= last) return;
+        if (!pending.hasRemaining()) flush();
+        pending.putLong(offset).putLong(timestamp)
+                .putInt(level(level) << 24 | number(service));
+        last = offset;
+    }
+    public void flush() throws IOException {
+        if (pending.position() == 0) return;
+        pending.flip();
+        long at = HEADER + count * RECORD;
+        while (pending.hasRemaining())
+            at += ch.write(pending, at);
+        count = (at - HEADER) / RECORD;
+        pending.clear();
+    }
+    private int number(String service) throws IOException {
+        if (service == null) service = "";
+        Integer n = serviceIds.get(service);
+        if (n == null) {
+            n = services.size();
+            services.add(service);
+            serviceIds.put(service, n);
+            Files.write(servicesFile, (service + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        return n;
+    }
+    /** @return 0 (TRACE) to 4 (ERROR); anything unrecognized counts as INFO */
+    public static int level(String level) {
+        for (int i = 0; i < levels.length; i++)
+            if (levels[i].equalsIgnoreCase(level)) return i;
+        return 2;
+    }
+    /**
+     * Report the indexed lines that pass the filter, oldest first.
+     */
+    public void query(LogFilter filter, Hits out) throws IOException {
+        long since = filter.since;
+        flush();
+        if (count == 0) return;
+        // One mapping only goes so far: past that, just the most recent lines
+        long first = Math.max(0, count - Integer.MAX_VALUE / RECORD);
+        MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY,
+                HEADER + first * RECORD, (count - first) * RECORD);
+        long lo = 0, hi = count - first;
+        while (lo < hi) { // first record with timestamp >= since
+            long mid = (lo + hi) >>> 1;
+            if (m.getLong((int) (mid * RECORD) + 8) < since) lo = mid + 1;
+            else hi = mid;
+        }
+        boolean[] wanted = new boolean[services.size()];
+        for (int i = 0; i < wanted.length; i++)
+            wanted[i] = filter.service(services.get(i));
+        for (long r = lo; r < count - first; r++) {
+            int at = (int) (r * RECORD);
+            long ts = m.getLong(at + 8);
+            int sl = m.getInt(at + 16);
+            int level = sl >>> 24, sid = sl & 0xFFFFFF;
+            if (ts >= since && level >= filter.minLevel && sid < wanted.length && wanted[sid])
+                out.hit(m.getLong(at), ts, services.get(sid), levels[level]);
+        }
+    }
+    @Override
+    public void close() {
+        try {
+            flush();
+            ch.close();
+        } catch (IOException ex) {
+        }
+    }
+}
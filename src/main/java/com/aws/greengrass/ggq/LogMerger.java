@@ -0,0 +1,138 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Funnels the events decoded by many workers into one printer, in
+ * timestamp order. Every source has its own bounded queue, so one chatty
+ * log can't crowd out the others: once a source is live, when its queue
+ * is full the worker waits a little, and if the printer still hasn't
+ * caught up it starts dropping that source's events until there's room
+ * again. Dropped events are counted and reported in the output. Until
+ * then (while a worker catches up with what's already in its log) it just
+ * waits, so none of that is lost.
+ * <p>
+ * Events sit in a reorder buffer for a short window before they're
+ * printed, so that one from a slower source that happened earlier still
+ * comes out first.
+ */
+public class LogMerger implements Runnable {
+    public class Source {
+        final String name;
+        private final ArrayBlockingQueue<LogEvent> queue;
+        final AtomicLong dropped = new AtomicLong();
+        private long reported;
+        private boolean dropping;
+        private boolean live;
+        Source(String n, int capacity) {
+            name = n;
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+        /** From now on, drop events rather than wait for long */
+        public void live() {
+            live = true;
+        }
+        /** Called only by the one worker for this source */
+        public void put(LogEvent e) throws InterruptedException {
+            if (!live) {
+                queue.put(e);
+                wake.release();
+            } else if (dropping ? queue.offer(e) : queue.offer(e, patienceMillis, TimeUnit.MILLISECONDS)) {
+                dropping = false;
+                wake.release();
+            } else {
+                dropping = true;
+                dropped.incrementAndGet();
+            }
+        }
+    }
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+    private final PriorityQueue<LogEvent> pending = new PriorityQueue<>();
+    private final Semaphore wake = new Semaphore(0);
+    private final Consumer<LogEvent> printer;
+    private final Runnable idle;
+    int capacity = 4096;
+    int maxPending = 16384;
+    long windowNanos = TimeUnit.MILLISECONDS.toNanos(30);
+    long patienceMillis = 250;
+    private volatile boolean running = true;
+    /**
+     * @param printer gets the events one at a time, on the merger's thread
+     * @param idle    run whenever the merger is about to wait for events
+     */
+    public LogMerger(Consumer<LogEvent> printer, Runnable idle) {
+        this.printer = printer;
+        this.idle = idle;
+    }
+    public Source source(String name) {
+        Source s = new Source(name, capacity);
+        sources.add(s);
+        return s;
+    }
+    public long getDropped() {
+        long n = 0;
+        for (Source s : sources)
+            n += s.dropped.get();
+        return n;
+    }
+    public void stop() {
+        running = false;
+        wake.release();
+    }
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                gather();
+                long now = System.nanoTime();
+                LogEvent head;
+                while ((head = pending.peek()) != null
+                        && (now - head.arrived >= windowNanos || pending.size() > maxPending))
+                    printer.accept(pending.poll());
+                reportDrops();
+                head = pending.peek();
+                if (head == null) idle.run();
+                wake.tryAcquire(head == null ? 1000000000L
+                        : Math.max(1, windowNanos - (now - head.arrived)),
+                        TimeUnit.NANOSECONDS);
+                wake.drainPermits();
+            }
+            gather();
+            while (!pending.isEmpty())
+                printer.accept(pending.poll());
+            idle.run();
+        } catch (InterruptedException ex) {
+        }
+    }
+    /* Take a fair share from every source */
+    private void gather() {
+        boolean more = true;
+        while (more && pending.size() <= maxPending) {
+            more = false;
+            for (Source s : sources)
+                for (int i = 0; i < 64; i++) {
+                    LogEvent e = s.queue.poll();
+                    if (e == null) break;
+                    pending.add(e);
+                    more = true;
+                }
+        }
+    }
+    private void reportDrops() {
+        for (Source s : sources) {
+            long d = s.dropped.get();
+            if (d != s.reported) {
+                printer.accept(LogEvent.note(s.name, "[" + (d - s.reported)
+                        + " events from " + s.name + " dropped: output can't keep up]"));
+                s.reported = d;
+            }
+        }
+    }
+}
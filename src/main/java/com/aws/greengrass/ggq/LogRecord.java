@@ -0,0 +1,116 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import com.fasterxml.jackson.core.*;
+import com.fasterxml.jackson.databind.*;
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * The parts of a JSON nucleus log line that the watcher looks at. One
+ * record is reused for line after line: decode pulls out just these
+ * fields with a streaming parser and skips everything else. The cause
+ * chain is rarely there and can be big, so it's only copied out as text
+ * when present, and only parsed when someone asks for it.
+ */
+public class LogRecord {
+    private static final JsonFactory factory = new JsonFactory();
+    private static final ObjectMapper mapper = new ObjectMapper();
+    public String eventType, level, message, serviceName;
+    public String scriptName, command, newState;
+    public long timestamp;
+    private String cause;
+    private JsonNode causeTree;
+    private void clear() {
+        eventType = level = message = serviceName = "";
+        scriptName = command = newState = "";
+        timestamp = 0;
+        cause = null;
+        causeTree = null;
+    }
+    /** @return false if b[off..off+len) isn't a JSON object */
+    public boolean decode(byte[] b, int off, int len) throws IOException {
+        clear();
+        try (JsonParser p = factory.createParser(b, off, len)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) return false;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String f = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                switch (f) {
+                    case "eventType":
+                        eventType = text(p, t);
+                        break;
+                    case "level":
+                        level = text(p, t);
+                        break;
+                    case "message":
+                        message = text(p, t);
+                        break;
+                    case "timestamp":
+                        timestamp = t == JsonToken.VALUE_NUMBER_INT ? p.getLongValue() : 0;
+                        break;
+                    case "contexts":
+                        if (t == JsonToken.START_OBJECT) contexts(p);
+                        else p.skipChildren();
+                        break;
+                    case "cause":
+                        if (t == JsonToken.START_OBJECT) {
+                            int start = (int) p.getTokenLocation().getByteOffset();
+                            p.skipChildren();
+                            int end = (int) p.getCurrentLocation().getByteOffset();
+                            cause = new String(b, off + start, end - start,
+                                    StandardCharsets.UTF_8);
+                        } else p.skipChildren();
+                        break;
+                    default:
+                        p.skipChildren();
+                }
+            }
+        }
+        return true;
+    }
+    private void contexts(JsonParser p) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String f = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            switch (f) {
+                case "serviceName":
+                    serviceName = text(p, t);
+                    break;
+                case "scriptName":
+                    scriptName = text(p, t);
+                    break;
+                case "command":
+                    command = text(p, t);
+                    break;
+                case "newState":
+                    newState = text(p, t);
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+    }
+    private static String text(JsonParser p, JsonToken t) throws IOException {
+        if (t.isScalarValue())
+            return t == JsonToken.VALUE_NULL ? "" : p.getText();
+        p.skipChildren();
+        return "";
+    }
+    public boolean hasCause() {
+        return cause != null;
+    }
+    /** The cause object, parsed the first time it's asked for */
+    public JsonNode getCause() {
+        if (causeTree == null && cause != null)
+            try {
+                causeTree = mapper.readTree(cause);
+            } catch (IOException ex) {
+                causeTree = mapper.createObjectNode().put("message", cause);
+            }
+        return causeTree;
+    }
+}
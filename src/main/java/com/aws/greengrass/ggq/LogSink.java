@@ -0,0 +1,160 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Where the watcher's output goes. Events are formatted into one reused
+ * buffer and written out in batches, when the batch gets big or its oldest
+ * line is about to be 50ms old, and whenever the watcher runs out of
+ * things to print. It isn't thread safe: it's meant to be fed by the one
+ * printer thread.
+ */
+public class LogSink implements Closeable {
+    public interface Formatter {
+        void format(LogEvent e, StringBuilder out);
+    }
+    /** @return the named formatter, or null if there's no such thing */
+    public static Formatter formatter(String name) {
+        switch (name) {
+            case "plain":
+                return new Plain(false);
+            case "color":
+            case "colour":
+                return new Plain(true);
+            case "json":
+                return new JsonLines();
+            default:
+                return null;
+        }
+    }
+    private final OutputStream out;
+    private final Formatter formatter;
+    private final StringBuilder batch = new StringBuilder(1 << 16);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+    int maxBatch = 1 << 15;
+    long maxDelayNanos = 50_000_000L;
+    private long firstPending;
+    public LogSink(OutputStream o, Formatter f) {
+        out = o;
+        formatter = f;
+    }
+    /** Straight to file descriptor 1, without System.out's locking and flushing */
+    public static LogSink stdout(Formatter f) {
+        System.out.flush();
+        return new LogSink(new FileOutputStream(FileDescriptor.out), f);
+    }
+    public void accept(LogEvent e) {
+        if (batch.length() == 0) firstPending = System.nanoTime();
+        formatter.format(e, batch);
+        if (batch.length() >= maxBatch
+                || System.nanoTime() - firstPending >= maxDelayNanos)
+            flush();
+    }
+    public void flush() {
+        if (batch.length() == 0) return;
+        CharBuffer chars = CharBuffer.wrap(batch);
+        encoder.reset();
+        try {
+            while (true) {
+                CoderResult r = encoder.encode(chars, bytes, true);
+                if (r.isUnderflow()) r = encoder.flush(bytes);
+                bytes.flip();
+                out.write(bytes.array(), 0, bytes.limit());
+                bytes.clear();
+                if (r.isUnderflow()) break;
+            }
+            out.flush();
+        } catch (IOException ex) {
+            // stdout is gone: nobody to tell
+        }
+        batch.setLength(0);
+    }
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+    /* What ggq --watch has always printed, optionally with ANSI colours */
+    static class Plain implements Formatter {
+        private static final String RESET = "\u001B[0m";
+        private final boolean color;
+        private String lastService;
+        Plain(boolean c) {
+            color = c;
+        }
+        @Override
+        public void format(LogEvent e, StringBuilder sb) {
+            if (e.tag == 0)
+                sb.append(e.message).append('\n');
+            else {
+                String service = e.service.equals(lastService) ? "" : Watcher.trimTo(e.service, 10);
+                lastService = e.service;
+                if (color && !service.isEmpty())
+                    sb.append("\u001B[1m");
+                sb.append(service);
+                if (color && !service.isEmpty())
+                    sb.append(RESET);
+                for (int i = service.length(); i < 10; i++)
+                    sb.append(' ');
+                sb.append(' ');
+                String c = color ? color(e.tag) : null;
+                if (c != null) sb.append(c);
+                sb.append(e.tag).append(' ').append(e.message);
+                if (c != null) sb.append(RESET);
+                sb.append('\n');
+            }
+            for (String d : e.detail) {
+                if (color) sb.append("\u001B[2m");
+                sb.append(d);
+                if (color) sb.append(RESET);
+                sb.append('\n');
+            }
+        }
+        private static String color(char tag) {
+            switch (tag) {
+                case '!': return "\u001B[31m";
+                case '*': return "\u001B[33m";
+                case '>': return "\u001B[36m";
+                case '%': return "\u001B[35m";
+                default: return null;
+            }
+        }
+    }
+    /* One JSON object per line, for other programs */
+    static class JsonLines implements Formatter {
+        @Override
+        public void format(LogEvent e, StringBuilder sb) {
+            sb.append("{\"timestamp\":").append(e.timestamp);
+            field(sb, "source", e.source);
+            field(sb, "service", e.service);
+            field(sb, "level", e.level);
+            field(sb, "eventType", e.eventType);
+            if (e.tag != 0)
+                field(sb, "tag", String.valueOf(e.tag));
+            field(sb, "message", e.message);
+            if (!e.detail.isEmpty()) {
+                sb.append(",\"detail\":[");
+                for (int i = 0; i < e.detail.size(); i++) {
+                    if (i > 0) sb.append(',');
+                    Main.quote(sb, e.detail.get(i));
+                }
+                sb.append(']');
+            }
+            sb.append("}\n");
+        }
+        private static void field(StringBuilder sb, String name, String value) {
+            if (value == null || value.isEmpty()) return;
+            sb.append(",\"").append(name).append("\":");
+            Main.quote(sb, value);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per service counts of what the watcher has seen: lines, warnings and
+ * errors, and the states reported for it with the time spent in each.
+ * Counting is cheap enough to always be on: the workers for different
+ * files only meet in a ConcurrentHashMap lookup and LongAdders. State
+ * changes are rare, so they're just synchronized. --stats shows them.
+ * Lines that were already in the logs (and the backfilled ones) count
+ * towards everything but the rate.
+ */
+public class LogStats {
+    public static class Service {
+        public final String name;
+        final LongAdder lines = new LongAdder();
+        final LongAdder history = new LongAdder(); // of the lines, not live
+        final LongAdder warnings = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder changes = new LongAdder();
+        private String state = "";
+        private long stateSince;
+        private final Map<String, Long> timeIn = new HashMap<>();
+        private long shown; // live lines, the last time they were shown
+        Service(String n) {
+            name = n;
+        }
+        synchronized void state(String s, long at) {
+            if (!state.isEmpty() && at > stateSince)
+                timeIn.merge(state, at - stateSince, Long::sum);
+            state = s;
+            stateSince = at;
+            changes.increment();
+        }
+        public synchronized String getState() {
+            return state;
+        }
+        /** @return how long it has spent in each state, up to now */
+        public synchronized Map<String, Long> timeIn(long now) {
+            Map<String, Long> m = new HashMap<>(timeIn);
+            if (!state.isEmpty() && now > stateSince)
+                m.merge(state, now - stateSince, Long::sum);
+            return m;
+        }
+        synchronized long since() {
+            return stateSince;
+        }
+    }
+    private final ConcurrentMap<String, Service> services = new ConcurrentHashMap<>();
+    private long lastShown = System.nanoTime();
+    public Service get(String name) {
+        Service s = services.get(name);
+        return s != null ? s : services.computeIfAbsent(name, Service::new);
+    }
+    /** Count one decoded log line */
+    public void record(LogRecord r) {
+        record(r, true);
+    }
+    /** @param live false if it was written before the watch started */
+    public void record(LogRecord r, boolean live) {
+        Service s = get(r.serviceName.isEmpty() ? "-" : r.serviceName);
+        s.lines.increment();
+        if (!live) s.history.increment();
+        switch (r.level) {
+            case "WARN":
+                s.warnings.increment();
+                break;
+            case "ERROR":
+                s.errors.increment();
+                break;
+        }
+        if ("service-report-state".equals(r.eventType) && !r.newState.isEmpty())
+            s.state(r.newState, r.timestamp);
+    }
+    /** A table of everything, busiest services first. Only one thread
+     * should do this, since it keeps track of the rates. */
+    public void render(StringBuilder sb, long now) {
+        long t = System.nanoTime();
+        double secs = Math.max(1e-3, (t - lastShown) / 1e9);
+        lastShown = t;
+        List<Service> l = new ArrayList<>(services.values());
+        l.sort(Comparator.comparingLong((Service s) -> -s.lines.sum())
+                .thenComparing(s -> s.name));
+        Formatter f = new Formatter(sb);
+        f.format("%-20s %8s %9s %6s %6s %-12s %8s %7s  %s\n", "service", "lines/s",
+                "lines", "warn", "error", "state", "for", "changes", "time in states");
+        for (Service s : l) {
+            long lines = s.lines.sum(), live = lines - s.history.sum();
+            String state;
+            long since;
+            Map<String, Long> timeIn;
+            synchronized (s) {
+                state = s.getState();
+                since = s.since();
+                timeIn = s.timeIn(now);
+            }
+            StringBuilder states = new StringBuilder();
+            timeIn.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .forEach(e -> states.append(states.length() > 0 ? ", " : "")
+                    .append(e.getKey()).append(' ').append(duration(e.getValue())));
+            f.format("%-20s %8.1f %9d %6d %6d %-12s %8s %7d  %s\n",
+                    Watcher.trimTo(s.name, 20), (live - s.shown) / secs, lines,
+                    s.warnings.sum(), s.errors.sum(), state,
+                    state.isEmpty() ? "" : duration(now - since), s.changes.sum(), states);
+            s.shown = live;
+        }
+    }
+    static String duration(long millis) {
+        long s = Math.max(0, millis) / 1000;
+        if (s < 60) return s + "s";
+        if (s < 3600) return s / 60 + "m" + s % 60 + "s";
+        if (s < 86400) return s / 3600 + "h" + s / 60 % 60 + "m";
+        return s / 86400 + "d" + s / 3600 % 24 + "h";
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+ * Follows one log file. Each poll reads whatever was appended since the
+ * last one through a FileChannel, a big block at a time, and hands the
+ * complete lines to a callback as byte ranges; a partial last line waits
+ * for the rest of it. The position is tracked here rather than in a
+ * Reader, so truncation (the file got shorter) and rotation (the name now
+ * refers to a different file) can both be noticed: after a rotation the
+ * rest of the old file is read before switching to the new one. A file
+ * that's deleted is read to the end and let go of.
+ */
+public class LogTail implements Closeable {
+    public interface Lines {
+        /** b[off..off+len) is one line, without its line terminator. Only
+         * valid during the call. */
+        void line(byte[] b, int off, int len);
+    }
+    private static final int BLOCK = 512 << 10;
+    private final Path path;
+    private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK);
+    private byte[] scratch = new byte[2 * BLOCK];
+    private int carry; // bytes of an unfinished line at the start of scratch
+    private FileChannel ch;
+    private Object fileKey;
+    private long position; // of the next byte to read
+    private long lineOffset;
+    public LogTail(Path p) {
+        path = p;
+    }
+    public Path getPath() {
+        return path;
+    }
+    /** Where the next unfinished line starts in the current file */
+    public long getOffset() {
+        return position - carry;
+    }
+    /** During a Lines callback: where that line starts in the current file */
+    public long getLineOffset() {
+        return lineOffset;
+    }
+    public Object getFileKey() {
+        return fileKey;
+    }
+    /** Start reading at offset, which should be the start of a line */
+    public void seek(long offset) {
+        position = Math.max(0, offset);
+        carry = 0;
+    }
+    /**
+     * Where the last n lines of a file start, found by reading it
+     * backwards a block at a time. A partial last line counts as one.
+     */
+    public static long lastLines(Path path, int n) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size(), pos = size;
+            ByteBuffer b = ByteBuffer.allocate(64 << 10);
+            int want = -1, seen = 0; // newlines to step back over
+            while (pos > 0) {
+                int len = (int) Math.min(b.capacity(), pos);
+                pos -= len;
+                b.clear();
+                b.limit(len);
+                while (b.hasRemaining())
+                    if (ch.read(b, pos + b.position()) < 0) return 0; // shrank
+                for (int i = len - 1; i >= 0; i--)
+                    if (b.get(i) == '\n') {
+                        if (want < 0) // the end of the last line?
+                            want = pos + i == size - 1 ? n + 1 : Math.max(n, 1);
+                        if (++seen == want) return pos + i + 1;
+                    }
+            }
+            return 0;
+        }
+    }
+    /**
+     * Deliver every complete line appended since the last poll.
+     * @return the number of lines delivered
+     */
+    public int poll(Lines out) throws IOException {
+        int n = 0;
+        Object key = fileKey(path);
+        if (ch != null && (key == null || !key.equals(fileKey))) {
+            // Rotated or deleted: finish the old file, then start the new
+            // one (if there is one) from the top
+            n += drain(out, true);
+            close();
+            position = 0;
+        }
+        if (ch == null) {
+            if (key == null) return n;
+            try {
+                ch = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException ex) {
+                return n;
+            }
+            fileKey = key;
+        }
+        if (ch.size() < position) { // truncated
+            position = 0;
+            carry = 0;
+        }
+        return n + drain(out, false);
+    }
+    /** @return what identifies the file at p, or null if there's none */
+    static Object fileKey(Path path) throws IOException {
+        try {
+            BasicFileAttributes a = Files.readAttributes(path, BasicFileAttributes.class);
+            Object k = a.fileKey();
+            return k != null ? k : a.creationTime();
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+    private int drain(Lines out, boolean eof) throws IOException {
+        int n = 0;
+        while (true) {
+            block.clear();
+            int got = ch.read(block, position);
+            if (got <= 0) break;
+            position += got;
+            block.flip();
+            if (carry + got > scratch.length)
+                scratch = Arrays.copyOf(scratch, Math.max(2 * scratch.length, carry + got));
+            block.get(scratch, carry, got);
+            n += split(carry + got, out);
+        }
+        if (eof && carry > 0) {
+            lineOffset = position - carry;
+            out.line(scratch, 0, trim(0, carry));
+            carry = 0;
+            n++;
+        }
+        return n;
+    }
+    /* Hand out the complete lines in scratch[0..end), keep the rest */
+    private int split(int end, Lines out) {
+        byte[] b = scratch;
+        long base = position - end;
+        int start = 0, n = 0;
+        for (int i = carry; i < end; i++)
+            if (b[i] == '\n') {
+                lineOffset = base + start;
+                out.line(b, start, trim(start, i) - start);
+                start = i + 1;
+                n++;
+            }
+        carry = end - start;
+        if (carry > 0 && start > 0)
+            System.arraycopy(b, start, b, 0, carry);
+        return n;
+    }
+    private int trim(int start, int end) {
+        return end > start && scratch[end - 1] == '\r' ? end - 1 : end;
+    }
+    @Override
+    public void close() {
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException ex) {
+            }
+            ch = null;
+        }
+        carry = 0;
+    }
+}
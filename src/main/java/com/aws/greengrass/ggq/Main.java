@@ -8,15 +8,20 @@ import java.io.*;
 import java.net.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Main {
     enum Dest {
-        GTD, GROUP, ROOT, REGION, BUCKET, NONE, REMOVE
+        GTD, GROUP, ROOT, REGION, BUCKET, NONE, REMOVE, BATCH, JOBS, FORMAT, SINCE, SERVICE, LEVEL, TAIL, GREP, ALERT, ALERTS
     }
     final String[] args;
-    static final Set<String> templateSources = new LinkedHashSet<>();
+    // Every Main adds to it, and --batch makes them on several threads
+    static final Set<String> templateSources = Collections.synchronizedSet(new LinkedHashSet<>());
     TemplateCommand tc = new TemplateCommand();
+    Deployment deployment = new Deployment(tc);
+    private boolean ownsDeployment = true;
     boolean didSomethingUseful = false;
+    int jobs = Runtime.getRuntime().availableProcessors();
     public static void main(String[] cmd) {
         int ret = -1;
         try {
@@ -31,6 +36,7 @@ public class Main {
     }
     public Main(String[] args) {
         this.args = args;
+        tc.deployment = deployment;
         getPreference("templates", templateSources);
     }
     int exec() {
@@ -38,6 +44,12 @@ public class Main {
         ArrayList<String> files = new ArrayList<>();
         ArrayList<Assignment> assignments = new ArrayList<>();
         boolean doWatch = false;
+        LogSink.Formatter watchFormat = LogSink.formatter("plain");
+        LogFilter watchFilter = new LogFilter();
+        LogAlerts alerts = new LogAlerts();
+        boolean follow = false, backfill = false, stats = false;
+        int tailLines = -1;
+        String batchFile = null;
         for (String s : args)
             switch (dest) {
                 case GTD:
@@ -54,19 +66,86 @@ public class Main {
                     break;
                 case REGION:
                     dest = Dest.NONE;
-                    tc.cloud = CloudOps.of(s);
+                    for (String r : s.split(","))
+                        if (!r.trim().isEmpty())
+                            tc.regions.add(CloudOps.of(r.trim()));
+                    if (tc.cloud == null && !tc.regions.isEmpty())
+                        tc.cloud = tc.regions.get(0);
                     break;
                 case BUCKET:
                     dest = Dest.NONE;
                     tc.bucket = s;
                     break;
+                case BATCH:
+                    dest = Dest.NONE;
+                    batchFile = s;
+                    break;
+                case JOBS:
+                    dest = Dest.NONE;
+                    try {
+                        jobs = Math.max(1, Integer.parseInt(s));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Illegal job count: " + s);
+                        return 1;
+                    }
+                    break;
+                case FORMAT:
+                    dest = Dest.NONE;
+                    watchFormat = LogSink.formatter(s);
+                    if (watchFormat == null) {
+                        System.out.println("Unknown format: " + s);
+                        return 1;
+                    }
+                    break;
+                case SINCE:
+                case SERVICE:
+                case LEVEL:
+                case GREP:
+                case ALERT:
+                case ALERTS:
+                    try {
+                        switch (dest) {
+                            case SINCE: watchFilter.since(s);
+                                break;
+                            case SERVICE: watchFilter.services(s);
+                                break;
+                            case LEVEL: watchFilter.level(s);
+                                break;
+                            case GREP: watchFilter.grep(s);
+                                break;
+                            case ALERT: alerts.add(s);
+                                break;
+                            default: alerts.load(Paths.get(s));
+                        }
+                    } catch (IllegalArgumentException | IOException ex) {
+                        System.out.println(ex instanceof IOException ? "Can't read " + s + ": " + ex : ex.getMessage());
+                        return 1;
+                    }
+                    dest = Dest.NONE;
+                    break;
+                case TAIL:
+                    dest = Dest.NONE;
+                    try {
+                        tailLines = Math.max(0, Integer.parseInt(s));
+                    } catch (NumberFormatException nfe) {
+                        System.out.println("Illegal line count: " + s);
+                        return 1;
+                    }
+                    break;
                 case REMOVE:
                     dest = Dest.NONE;
-                    tc.runCommand("deployment", "create", "--remove", s);
+                    deployment.remove(s);
                     didSomethingUseful = true;
                     break;
                 case NONE:
                     switch (s) {
+                        case "--batch":
+                            dest = Dest.BATCH;
+                            break;
+                        case "-j":
+                        case "--jobs":
+                            dest = Dest.JOBS;
+                            break;
                         case "-b":
                         case "--bucket":
                             dest = Dest.BUCKET;
@@ -110,6 +189,18 @@ public class Main {
                             tc.cloud = CloudOps.dflt();
                             tc.dryrun = true;
                             break;
+                        case "--session":
+                            if (!CliSession.start(tc)) return 1;
+                            didSomethingUseful = true;
+                            break;
+                        case "--nosession":
+                            CliSession.stop();
+                            didSomethingUseful = true;
+                            break;
+                        case "--store":
+                        case "-st":
+                            tc.storeOnly = true;
+                            break;
                         case "--verbose":
                         case "-v":
                             tc.verbose = true;
@@ -118,6 +209,43 @@ public class Main {
                         case "-w":
                             doWatch = true;
                             break;
+                        case "--format":
+                            dest = Dest.FORMAT;
+                            break;
+                        case "--since":
+                            dest = Dest.SINCE;
+                            break;
+                        case "--service":
+                            dest = Dest.SERVICE;
+                            break;
+                        case "--level":
+                            dest = Dest.LEVEL;
+                            break;
+                        case "--grep":
+                            dest = Dest.GREP;
+                            break;
+                        case "--alert":
+                            dest = Dest.ALERT;
+                            doWatch = true;
+                            break;
+                        case "--alerts":
+                            dest = Dest.ALERTS;
+                            doWatch = true;
+                            break;
+                        case "--follow":
+                        case "-f":
+                            follow = doWatch = true;
+                            break;
+                        case "--stats":
+                            stats = doWatch = true;
+                            break;
+                        case "--backfill":
+                            backfill = doWatch = true;
+                            break;
+                        case "--tail":
+                            dest = Dest.TAIL;
+                            doWatch = true;
+                            break;
                         case "--help":
                         case "-h":
                             return 256; // sic
@@ -133,32 +261,158 @@ public class Main {
                     }
                     break;
             }
-        if (doWatch)
-            return new Watcher(tc).watch();
-        if (!files.isEmpty()) {
-            tc.files = files;
-            tc.assignments = assignments;
-            try {
-                tc.run();
-                return 0;
-            } catch (Throwable t) {
-                Throwable c = t;
-                while (c.getCause() != null)
-                    c = c.getCause();
-                String m = c.getLocalizedMessage();
-                if (m == null || m.length() == 0) m = c.toString();
-                System.out.println(m);
-                if (tc.verbose) t.printStackTrace(System.out);
+        if (batchFile != null) {
+            if (doWatch || !files.isEmpty()) {
+                System.out.println(doWatch ? "--batch can't be combined with watching"
+                        : "With --batch, the files go in the batch file: " + files);
+                return 1;
+            }
+            return batch(batchFile);
+        }
+        if (doWatch) {
+            // Send whatever -rm queued up first: watching doesn't return
+            if (ownsDeployment) try {
+                deployment.deploy();
+            } catch (IllegalArgumentException ex) {
+                System.out.println(ex.getMessage());
                 return 1;
             }
-        } else if (!assignments.isEmpty())
-            processAssignments(assignments);
-        else if (!didSomethingUseful) {
-            System.err.println("Usage: ggq files...");
-            return 256;
+            Watcher w = new Watcher(tc);
+            w.format = watchFormat;
+            w.filter = watchFilter;
+            w.follow = follow;
+            w.tailLines = tailLines;
+            w.backfill = backfill;
+            w.showStats = stats;
+            if (!alerts.isEmpty()) w.alerts = alerts;
+            return w.watch();
+        }
+        try {
+            if (!files.isEmpty()) {
+                tc.files = files;
+                tc.assignments = assignments;
+                tc.run();
+            } else if (!assignments.isEmpty())
+                processAssignments(assignments);
+            else if (!didSomethingUseful) {
+                System.err.println("Usage: ggq files...");
+                return 256;
+            }
+            if (ownsDeployment)
+                deployment.deploy();
+            return 0;
+        } catch (Throwable t) {
+            Throwable c = t;
+            while (c.getCause() != null)
+                c = c.getCause();
+            String m = c.getLocalizedMessage();
+            if (m == null || m.length() == 0) m = c.toString();
+            System.out.println(m);
+            if (tc.verbose) t.printStackTrace(System.out);
+            return 1;
+        }
+    }
+    /**
+     * Each line of the batch file holds the files and key=value settings of
+     * one component. The build options and settings on the command line
+     * apply to all of them; the rest (-l, -rm, --session...) have already
+     * been done, once.
+     */
+    private int batch(String fn) {
+        List<String> common = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+            switch (args[i]) {
+                case "-gtd":
+                case "-g":
+                case "--group":
+                case "-r":
+                case "--ggcRootPath":
+                case "-b":
+                case "--bucket":
+                case "-t":
+                case "--to":
+                    common.add(args[i]);
+                    if (i + 1 < args.length) common.add(args[++i]);
+                    break;
+                case "-dr":
+                case "--dryrun":
+                case "-u":
+                case "--upload":
+                case "-st":
+                case "--store":
+                case "-v":
+                case "--verbose":
+                    common.add(args[i]);
+                    break;
+                default:
+                    if (!args[i].startsWith("-") && args[i].indexOf('=') > 0)
+                        common.add(args[i]);
+                    else if (takesValue.contains(args[i])) i++;
+            }
+        List<String[]> components = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fn))) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                List<String> a = new ArrayList<>(common);
+                a.addAll(Arrays.asList(line.split("\\s+")));
+                components.add(a.toArray(new String[a.size()]));
+            }
+        } catch (IOException ex) {
+            System.out.println(fn + ": " + ex);
+            return 1;
+        }
+        return batch(components);
+    }
+    /**
+     * Run several ggq commands in this JVM, so that they share the AWS
+     * clients and parsed templates. At most <code>jobs</code> of them run at
+     * once. The components they build are deployed together, once they have
+     * all been built.
+     */
+    public int batch(List<String[]> commands) {
+        DeployedComponent.refreshEarly = true;
+        ExecutorService pool = Executors
+                .newFixedThreadPool(Math.max(1, Math.min(jobs, commands.size())));
+        List<Future<Integer>> results = new ArrayList<>();
+        for (String[] cmd : commands)
+            results.add(pool.submit(() -> {
+                Main m = new Main(cmd);
+                m.tc.deployment = m.deployment = deployment;
+                m.ownsDeployment = false;
+                return m.exec();
+            }));
+        pool.shutdown();
+        int failures = 0;
+        for (int i = 0; i < results.size(); i++) {
+            int ret;
+            try {
+                ret = results.get(i).get();
+            } catch (InterruptedException | ExecutionException ex) {
+                ret = -1;
+            }
+            if (ret != 0) {
+                System.out.println("Failed: " + String.join(" ", commands.get(i)));
+                failures++;
+            }
+        }
+        if (failures > 0) {
+            System.out.println(failures + " of " + commands.size()
+                    + " components failed, nothing deployed.");
+            return 1;
+        }
+        try {
+            deployment.deploy();
+        } catch (IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            return 1;
         }
         return 0;
     }
+    /* The options of exec() that take a value */
+    private static final Set<String> takesValue = new HashSet<>(Arrays.asList(
+            "--batch", "-j", "--jobs", "-rm", "--remove", "--format", "--since",
+            "--service", "--level", "--grep", "--alert", "--alerts", "--tail"));
     private static final String helpUrl = "https://github.com/aws-greengrass/"
             + "aws-greengrass-quick-templates/blob/main/README.md";
     public static void showHelp() {
@@ -206,43 +460,14 @@ public class Main {
     private void processAssignments(List<Assignment> assignments) {
         if (assignments != null && assignments.size() > 0) {
             didSomethingUseful = true;
-            HashMap<String, StringBuilder> settings = new HashMap<>();
             assignments.forEach(s -> {
-                if (s.component != null) {
-                    StringBuilder comps = settings
-                            .computeIfAbsent(s.component, n -> new StringBuilder());
-                    if (comps.length() > 0) comps.append(",\n\t");
-                    addKV(comps, s.key, s.value);
-                } else
+                if (s.component != null)
+                    deployment.config(s.component,
+                            DeployedComponent.of(s.component, tc).version,
+                            s.key, s.value);
+                else
                     throw new IllegalArgumentException(s.key + ": not associated with a component");
             });
-            StringBuilder sb = new StringBuilder();
-            sb.append('{');
-            settings.forEach((k, v) -> {
-                if (sb.length() > 1) sb.append(",\n");
-                quote(sb, k);
-                sb.append(": { \"MERGE\": {")
-                        .append(v)
-                        .append(" } }");
-            });
-            sb.append('}');
-            Deque<String> cmd = new LinkedList<>();
-            cmd.add("deployment");
-            cmd.add("create");
-            cmd.add("--update-config");
-            cmd.add(sb.toString());
-            settings.keySet().forEach(componentName -> {
-                cmd.add("--merge");
-                cmd.add(componentName + "=" +
-                        DeployedComponent.of(componentName, tc).version);
-            });
-            if (tc.runCommand((l, e) -> {
-                if (!l.contains("INFO") && !l.contains(".awssdk."))
-                    System.out.println((e ? "? " : "  ") + l);
-            }, cmd) != 0) {
-                System.out.println("config update failed.");
-                System.exit(1);
-            }
         }
     }
     static void addKV(StringBuilder comps, String subKey, String value) {
@@ -0,0 +1,136 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Publishes a component to several regions at once: each region gets the
+ * artifact zip in its own bucket and the recipes, with their artifact URLs
+ * pointed at that bucket. At most jobs regions are in flight at a time
+ * (each of them runs its own part uploads). Within a region, recipes are
+ * created in parallel, except that one waits for the generated recipes it
+ * depends on. One region failing doesn't stop the others; what happened
+ * where is returned as a list of Results.
+ */
+public class Publisher {
+    public static class Result {
+        public final String region;
+        public final List<String> published = Collections.synchronizedList(new ArrayList<>());
+        public boolean uploaded;
+        public Throwable error;
+        public long millis;
+        Result(String r) {
+            region = r;
+        }
+        public boolean ok() {
+            return error == null;
+        }
+    }
+    private final List<CloudOps> clouds;
+    private final int jobs;
+    private final int recipeJobs = Integer.parseInt(Main.getPreference("recipeJobs", "4"));
+    public Publisher(List<CloudOps> clouds, int jobs) {
+        this.clouds = clouds;
+        this.jobs = Math.max(1, jobs);
+    }
+    /**
+     * @param zip            the artifact zip, or null
+     * @param artifactBucket the bucket the recipes' artifact URLs refer to
+     */
+    public List<Result> publish(Path zip, String artifactBucket, Collection<RecipieFile> recipes) {
+        boolean alone = clouds.size() == 1;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, clouds.size()));
+        List<Future<Result>> futures = new ArrayList<>();
+        for (CloudOps c : clouds)
+            futures.add(pool.submit(() -> {
+                Result r = new Result(c.regionName());
+                long start = System.currentTimeMillis();
+                try {
+                    if (zip != null)
+                        r.uploaded = c.putIfAbsent(zip.getFileName().toString(), zip, alone);
+                    publishRecipes(c, artifactBucket, recipes, r);
+                } catch (Throwable t) {
+                    r.error = t;
+                }
+                r.millis = System.currentTimeMillis() - start;
+                return r;
+            }));
+        pool.shutdown();
+        List<Result> results = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++)
+            try {
+                results.add(futures.get(i).get());
+            } catch (InterruptedException | ExecutionException ex) {
+                Result r = new Result(clouds.get(i).regionName());
+                r.error = ex;
+                results.add(r);
+            }
+        return results;
+    }
+    private void publishRecipes(CloudOps c, String artifactBucket,
+            Collection<RecipieFile> recipes, Result r) throws Throwable {
+        List<RecipieFile> ordered = order(recipes);
+        if (ordered.isEmpty()) return;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+                Math.min(recipeJobs, ordered.size())));
+        Map<RecipieFile, CompletableFuture<Void>> done = new LinkedHashMap<>();
+        try {
+            for (RecipieFile recipe : ordered) {
+                CompletableFuture<?>[] deps = done.entrySet().stream()
+                        .filter(e -> recipe.dependsOn(e.getKey().name))
+                        .map(Map.Entry::getValue)
+                        .toArray(CompletableFuture[]::new);
+                done.put(recipe, CompletableFuture.allOf(deps).thenRunAsync(() -> {
+                    try {
+                        r.published.add(recipe.name + "=" + recipe.upload(c, artifactBucket));
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                }, pool));
+            }
+            CompletableFuture.allOf(done.values()
+                    .toArray(new CompletableFuture<?>[done.size()])).join();
+        } catch (CompletionException ex) {
+            throw ex.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+    /* Recipes with the ones they depend on first. A cycle is broken
+     * wherever it's found. */
+    static List<RecipieFile> order(Collection<RecipieFile> recipes) {
+        List<RecipieFile> all = new ArrayList<>();
+        for (RecipieFile f : recipes)
+            if (f.isRecipe) all.add(f);
+        List<RecipieFile> out = new ArrayList<>();
+        Set<RecipieFile> seen = new HashSet<>();
+        for (RecipieFile f : all)
+            visit(f, all, seen, out);
+        return out;
+    }
+    private static void visit(RecipieFile f, List<RecipieFile> all,
+            Set<RecipieFile> seen, List<RecipieFile> out) {
+        if (!seen.add(f)) return;
+        for (RecipieFile d : all)
+            if (d != f && f.dependsOn(d.name))
+                visit(d, all, seen, out);
+        out.add(f);
+    }
+    public static void report(List<Result> results) {
+        int width = 6;
+        for (Result r : results)
+            width = Math.max(width, r.region.length());
+        String fmt = "%-" + width + "s %-6s %6.1fs %s\n";
+        for (Result r : results)
+            System.out.printf(fmt, r.region, r.ok() ? "ok" : "FAILED",
+                    r.millis / 1000.0, r.ok()
+                    ? String.join(" ", r.published) + (r.uploaded ? " (zip uploaded)" : "")
+                    : String.valueOf(r.error.getMessage()));
+    }
+}
@@ -7,6 +7,7 @@ package com.aws.greengrass.ggq;
 import static com.aws.greengrass.ggq.TemplateCommand.*;
 import com.vdurmont.semver4j.*;
 import java.io.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
 import java.util.regex.*;
@@ -79,14 +80,20 @@ class RecipieFile {
         s = s.trim();
         return TemplateCommand.isEmpty(s) ? dflt : s;
     }
-    public void write(Path dir) throws IOException {
-        if (isRecipe) {
-            Path fn = dir.resolve(name + '-' + version + ".yaml");
-            try (final Writer out = Files.
-                    newBufferedWriter(fn, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                out.write(body);
-            }
-        }
+    /**
+     * Write the recipe into dir, unless an identical one is already there.
+     * @return the recipe file, or null if this isn't a recipe.
+     */
+    public Path write(Path dir) throws IOException {
+        if (!isRecipe) return null;
+        Path fn = dir.resolve(name + '-' + version + ".yaml");
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        if (Files.isRegularFile(fn) && Files.size(fn) == content.length
+                && Arrays.equals(Files.readAllBytes(fn), content))
+            return fn;
+        Files.write(fn, content, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        return fn;
     }
     public void injectArtifactRefs(String artifactURL) throws IOException {
         if (isRecipe)
@@ -95,9 +102,31 @@ class RecipieFile {
                             : "artifacts: [{ unarchive: ZIP, uri: '"
                             + artifactURL + "' }]");
     }
-    public void upload(CloudOps cloud) throws IOException {
-        if (isRecipe)
-            cloud.uploadRecipe(name, version, body);
+    private static final Pattern DEPENDENCIES = Pattern.compile(
+            "^componentDependencies: *$", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+    private static final Pattern TOPLEVEL = Pattern.compile("^\\S", Pattern.MULTILINE);
+    /** Whether the componentDependencies section of this recipe names other */
+    boolean dependsOn(String other) {
+        if (!isRecipe || body == null) return false;
+        Matcher deps = DEPENDENCIES.matcher(body);
+        if (!deps.find()) return false;
+        Matcher end = TOPLEVEL.matcher(body);
+        int limit = end.find(deps.end()) ? end.start() : body.length();
+        return Pattern.compile("^\\s+['\"]?" + Pattern.quote(other) + "['\"]?\\s*:",
+                Pattern.MULTILINE).matcher(body).region(deps.end(), limit).find();
+    }
+    /**
+     * @param artifactBucket the bucket the artifact URLs point at, which is
+     *                       swapped for cloud's own bucket.
+     * @return the version created, or null if this isn't a recipe
+     */
+    public String upload(CloudOps cloud, String artifactBucket) throws IOException {
+        if (!isRecipe) return null;
+        String b = body;
+        if (artifactBucket != null)
+            b = b.replace("s3://" + artifactBucket + "/",
+                    "s3://" + cloud.getBucket() + "/");
+        return cloud.uploadRecipe(name, version, b);
     }
     @Override public String toString() {
         return "recipie " + name + " - " + version;
@@ -0,0 +1,225 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import software.amazon.awssdk.core.exception.*;
+import software.amazon.awssdk.core.sync.*;
+import software.amazon.awssdk.services.s3.*;
+import software.amazon.awssdk.services.s3.model.*;
+
+/**
+ * Uploads a file to S3 in parts, several at a time. Every part carries its
+ * Content-MD5, so S3 rejects anything that got mangled on the way. The
+ * upload id is written to a journal as soon as the upload is created: if
+ * the transfer dies, running it again asks S3 which parts it already has
+ * (comparing their ETags with the local MD5s) and only sends the rest.
+ * Files no bigger than one part are sent with a plain putObject.
+ */
+public class S3Upload {
+    /** Called after every part with the bytes done so far and the
+     * transfer rate of this run, in bytes per second. */
+    public interface Progress {
+        void progress(long done, long total, double rate);
+    }
+    public static final int MIN_PART = 5 << 20; // S3's limit, except for the last part
+    private final S3Client s3;
+    private final String bucket, key;
+    private final Path file;
+    private int partSize = 8 << 20;
+    private int jobs = 4;
+    private Path journalDir;
+    private Progress progress = (d, t, r) -> {
+    };
+    private String contentType = "application/zip";
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicInteger partsSent = new AtomicInteger();
+    private long size, start;
+    public S3Upload(S3Client s3, String bucket, String key, Path file) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        this.file = file;
+    }
+    public S3Upload partSize(int p) {
+        partSize = p;
+        return this;
+    }
+    public S3Upload jobs(int j) {
+        jobs = Math.max(1, j);
+        return this;
+    }
+    public S3Upload journal(Path dir) {
+        journalDir = dir;
+        return this;
+    }
+    public S3Upload progress(Progress p) {
+        progress = p;
+        return this;
+    }
+    public S3Upload contentType(String t) {
+        contentType = t;
+        return this;
+    }
+    /** How many parts the last run actually transferred */
+    public int getPartsSent() {
+        return partsSent.get();
+    }
+    public void run() throws IOException {
+        size = Files.size(file);
+        start = System.nanoTime();
+        if (size <= partSize) {
+            byte[] body = Files.readAllBytes(file);
+            s3.putObject(b -> b.bucket(bucket).key(key)
+                    .contentType(contentType)
+                    .contentMD5(Base64.getEncoder().encodeToString(md5(body, body.length))),
+                    RequestBody.fromBytes(body));
+            sent.set(size);
+            partsSent.set(1);
+            report(size);
+            return;
+        }
+        Path jf = journalFile();
+        String uploadId = resume(jf);
+        Map<Integer, String> have = uploadId == null ? Collections.emptyMap()
+                : listParts(uploadId);
+        if (have == null) {
+            uploadId = null;
+            have = Collections.emptyMap();
+        }
+        if (uploadId == null) {
+            uploadId = s3.createMultipartUpload(b -> b.bucket(bucket).key(key)
+                    .contentType(contentType)).uploadId();
+            record(jf, uploadId);
+        }
+        int nparts = (int) ((size + partSize - 1) / partSize);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, nparts));
+        List<Future<CompletedPart>> futures = new ArrayList<>(nparts);
+        List<CompletedPart> parts = new ArrayList<>(nparts);
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            String id = uploadId;
+            Map<Integer, String> existing = have;
+            for (int i = 1; i <= nparts; i++) {
+                int pn = i;
+                futures.add(pool.submit(() -> part(fc, id, pn, existing.get(pn))));
+            }
+            for (Future<CompletedPart> f : futures)
+                parts.add(f.get());
+        } catch (ExecutionException ex) {
+            Throwable c = ex.getCause();
+            throw new IOException("Upload of " + key + " stopped, run again to resume: "
+                    + c.getMessage(), c);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Upload of " + key + " interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+        String id = uploadId;
+        s3.completeMultipartUpload(b -> b.bucket(bucket).key(key).uploadId(id)
+                .multipartUpload(m -> m.parts(parts)));
+        if (jf != null) Files.deleteIfExists(jf);
+    }
+    private CompletedPart part(FileChannel fc, String uploadId, int pn, String etag) throws IOException {
+        long pos = (long) (pn - 1) * partSize;
+        int len = (int) Math.min(partSize, size - pos);
+        byte[] buf = new byte[len];
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        while (bb.hasRemaining())
+            if (fc.read(bb, pos + bb.position()) < 0)
+                throw new EOFException(file + " shrank during upload");
+        byte[] md5 = md5(buf, len);
+        String hex = hex(md5);
+        if (etag == null || !hex.equalsIgnoreCase(etag.replace("\"", ""))) {
+            etag = s3.uploadPart(b -> b.bucket(bucket).key(key).uploadId(uploadId)
+                    .partNumber(pn)
+                    .contentLength((long) len)
+                    .contentMD5(Base64.getEncoder().encodeToString(md5)),
+                    RequestBody.fromBytes(buf)).eTag();
+            sent.addAndGet(len);
+            partsSent.incrementAndGet();
+        }
+        report(done.addAndGet(len));
+        return CompletedPart.builder().partNumber(pn).eTag(etag).build();
+    }
+    private void report(long d) {
+        double secs = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+        progress.progress(d, size, sent.get() / secs);
+    }
+    /* Parts S3 already has for uploadId, or null if it has forgotten it */
+    private Map<Integer, String> listParts(String uploadId) {
+        Map<Integer, String> m = new HashMap<>();
+        try {
+            Integer marker = null;
+            ListPartsResponse r;
+            do {
+                Integer from = marker;
+                r = s3.listParts(b -> b.bucket(bucket).key(key).uploadId(uploadId)
+                        .partNumberMarker(from));
+                r.parts().forEach(p -> m.put(p.partNumber(), p.eTag()));
+                marker = r.nextPartNumberMarker();
+            } while (Boolean.TRUE.equals(r.isTruncated()) && marker != null);
+        } catch (NoSuchUploadException ex) {
+            return null;
+        } catch (SdkException ex) {
+            System.out.println("Can't resume upload of " + key + ": " + ex.getMessage());
+            return null;
+        }
+        return m;
+    }
+    private Path journalFile() {
+        return journalDir == null ? null
+                : journalDir.resolve(bucket + "-" + key + ".upload");
+    }
+    /* The upload id to resume, if the journal describes this same file */
+    private String resume(Path jf) throws IOException {
+        if (jf == null || !Files.isRegularFile(jf)) return null;
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(jf)) {
+            p.load(in);
+        }
+        return describe().equals(p.getProperty("file")) ? p.getProperty("uploadId") : null;
+    }
+    private void record(Path jf, String uploadId) throws IOException {
+        if (jf == null) return;
+        Files.createDirectories(jf.getParent());
+        Properties p = new Properties();
+        p.setProperty("uploadId", uploadId);
+        p.setProperty("file", describe());
+        Path tmp = jf.resolveSibling(jf.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp)) {
+            p.store(out, "s3://" + bucket + "/" + key);
+        }
+        Files.move(tmp, jf, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+    private String describe() throws IOException {
+        return file.toAbsolutePath() + "," + size + ","
+                + Files.getLastModifiedTime(file).toMillis() + "," + partSize;
+    }
+    static byte[] md5(byte[] b, int len) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(b, 0, len);
+            return md.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b)
+            sb.append(Character.forDigit((x >> 4) & 0xF, 16))
+                    .append(Character.forDigit(x & 0xF, 16));
+        return sb.toString();
+    }
+}
@@ -11,18 +11,19 @@ import java.nio.file.*;
 import java.security.*;
 import java.time.*;
 import java.time.format.*;
+import java.time.temporal.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.*;
 import java.util.regex.*;
 import java.util.zip.*;
 import org.apache.velocity.*;
 import org.apache.velocity.app.*;
-import org.apache.velocity.runtime.*;
-import org.apache.velocity.runtime.resource.loader.*;
 
 public class TemplateCommand {
     boolean dryrun;
     CloudOps cloud;
+    final List<CloudOps> regions = new ArrayList<>();
     String generatedTemplateDirectory = "~/gg2Templates";
     String group = null;
     List<String> files;
@@ -40,10 +41,12 @@ public class TemplateCommand {
     private String artifactURL;
     private final List<String> artifacts = new ArrayList<>();
     private String javaVersion = "11";
+    boolean storeOnly = false;
+    Deployment deployment;
     private final Map<String, RecipieFile> recipes = new LinkedHashMap<>();
     public void run() {
         if (cloud != null) cloud.setBucket(bucket);
-        genTemplateDir = Paths.get(deTilde(generatedTemplateDirectory));
+        getGenTemplateDir();
         if (files.isEmpty())
             err("cli.tpl.files");
         scanFiles();
@@ -108,6 +111,11 @@ public class TemplateCommand {
         }
         return "";
     }
+    Path getGenTemplateDir() {
+        if (genTemplateDir == null)
+            genTemplateDir = Paths.get(deTilde(generatedTemplateDirectory));
+        return genTemplateDir;
+    }
     @SuppressWarnings("UseSpecificCatch")
     public void build() {
         String name = keyFile.name;
@@ -129,47 +137,53 @@ public class TemplateCommand {
                 resolve(version.toString());
         System.out
                 .println("Artifacts in " + versionedArtifactDir + "\nRecipes in " + recipeDir);
-        directoryMustBeClean(versionedArtifactDir);
-        directoryMustBeClean(recipeDir);
+        // Only files whose content changes get written, and anything
+        // that isn't part of this build gets removed afterwards.
+        Set<Path> outputs = new HashSet<>();
+        mkdirs(versionedArtifactDir);
+        mkdirs(recipeDir);
         zipArtifacts();
+        if (zippedArtifacts != null)
+            outputs.add(zippedArtifacts);
         generateTemplate();
         recipes.values().forEach(body -> {
             try {
                 body.injectArtifactRefs(
                         body == generatedRecipe || body == keyFile
                                 ? artifactURL : null);
-                body.write(recipeDir);
+                Path written = body.write(recipeDir);
+                if (written != null)
+                    outputs.add(written);
             } catch (Throwable ex) {
                 err("cli.tpl.err", ex);
             }
         });
+        prune(versionedArtifactDir, outputs);
+        prune(recipeDir, outputs);
     }
-    private void directoryMustBeClean(Path dir) {
+    private void mkdirs(Path dir) {
         try {
-            Files.list(dir).forEach(p -> {
-                String T = p.toString();
-                if (".".equals(T) || "..".equals(T)) {
-                    System.out.println("SHOULD NOT HAPPEN " + dir + "   " + p);
-                    System.exit(-1);
-                }
-                try {
-                    Path fp = dir.resolve(p);
-                    if (Files.isDirectory(fp))
-                        directoryMustBeClean(fp);
+            if (!Files.isDirectory(dir)) {
+                Files.deleteIfExists(dir);
+                Files.createDirectories(dir);
+            }
+        } catch (IOException ex) {
+            err("cli.tpl.cnc", dir);
+        }
+    }
+    private void prune(Path dir, Set<Path> keep) {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path fp : ds)
+                if (!keep.contains(fp))
+                    try {
+                    if (Files.isDirectory(fp, LinkOption.NOFOLLOW_LINKS))
+                        prune(fp, keep);
                     Files.delete(fp);
+                    if (verbose)
+                        System.out.println("Removed " + fp);
                 } catch (IOException ex) {
                 }
-            });
         } catch (IOException ex) {
-            try {
-                Files.deleteIfExists(dir);
-            } catch (IOException ex1) {
-            }
-            try {
-                Files.createDirectories(dir);
-            } catch (IOException ex1) {
-                err("cli.tpl.cnc", dir);
-            }
         }
     }
     @SuppressWarnings("UseSpecificCatch")
@@ -214,16 +228,7 @@ public class TemplateCommand {
     Path keyPath;
     private VelocityEngine getVelocityEngine() {
         if (velocityEngine == null) {
-            velocityEngine = new VelocityEngine();
-            velocityEngine.setProperty(RuntimeConstants.RESOURCE_LOADER,
-                    "file,classpath");
-            velocityEngine.setProperty("classpath.resource.loader.class",
-                    ClasspathResourceLoader.class.getName());
-            velocityEngine
-                    .setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH,
-                            localTemplateDir.toString());
-//            velocityEngine.setProperty(RuntimeConstants.EVENTHANDLER_INCLUDE, IncludeRelativePath.class.getName());
-            velocityEngine.init();
+            velocityEngine = Templates.engine(localTemplateDir);
             context.put("name", keyFile.name);
             context.put("version", keyFile.version);
             context.put("publisher", !isEmpty(keyFile.publisher)
@@ -239,8 +244,7 @@ public class TemplateCommand {
                 sb.append("Created for ")
                         .append(System.getProperty("user.name"))
                         .append(" on ")
-                        .append(DateTimeFormatter.ISO_INSTANT.format(Instant.
-                                now()))
+                        .append(DateTimeFormatter.ISO_INSTANT.format(newestInput()))
                         .append(" from");
                 files.forEach(f -> sb.append(' ').append(f));
                 description = sb.toString();
@@ -265,6 +269,16 @@ public class TemplateCommand {
         }
         return velocityEngine;
     }
+    /* Stamping recipes with the time the inputs were last changed, rather
+     * than the time of the build, keeps rebuilds of unchanged inputs
+     * byte-identical. */
+    private Instant newestInput() {
+        long newest = 0;
+        for (String f : files)
+            newest = Math.max(newest, new File(f).lastModified());
+        return newest > 0 ? Instant.ofEpochMilli(newest).truncatedTo(ChronoUnit.SECONDS)
+                : Instant.now();
+    }
     private void harvestJar(String pn) {
         try ( JarFile jar = new JarFile(new File(pn))) {
             Manifest m = jar.getManifest();
@@ -305,32 +319,20 @@ public class TemplateCommand {
             err("cli.tpl.erd", pn);
         }
     }
+    /* Deploy the component, or if it's part of a larger deployment, just
+     * add it. */
     private void deploy() {
-        Deque<String> args = new LinkedList<>();
-        args.add("--ggcRootPath");
-        args.add(getGgcRootPath());
-        args.add("deployment");
-        args.add("create");
-        args.add("-r");
-        args.add(recipeDir.toString());
-        args.add("-a");
-        args.add(artifactDir.toString());
-        args.add("-m");
-        args.add(keyFile.name + "=" + keyFile.version);
-        if (!isEmpty(group)) {
-            args.add("-g");
-            args.add(group);
-        }
-        params.forEach(s -> {
-            args.add("-p");
-            args.add(s);
-        });
-        System.out.append(dryrun ? "DryRun" : "Executing").
-                append(": greengrass-cli");
-        args.forEach(s -> System.out.append(' ').append(s));
-        System.out.println();
-        if (!dryrun && runCommand(args) != 0)
-            err("cli.tpl.deploy");
+        Deployment d = deployment != null ? deployment : new Deployment(this);
+        d.add(recipeDir, artifactDir, keyFile.name, keyFile.version.toString())
+                .group(group);
+        params.forEach(d::param);
+        if (d != deployment)
+            d.deploy();
+    }
+    private List<Path> artifactPaths() {
+        List<Path> sources = new ArrayList<>(artifacts.size());
+        artifacts.forEach(name -> sources.add(Paths.get(name)));
+        return sources;
     }
     public void zipArtifacts() {
         if (artifacts.isEmpty())
@@ -339,66 +341,63 @@ public class TemplateCommand {
             Path adir = artifactDir.resolve(keyFile.name)
                     .resolve(keyFile.version.toString());
             Files.createDirectories(adir);
-            Path zip = adir.resolve(keyFile.name + ".zip");
-//            for(Provider p:Security.getProviders()) {
-//                System.out.println(">>> "+p);
-//                p.entrySet().forEach(e->System.out.println("\t"+e.getKey()+":\t"+e.getValue()));
-//            }
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            try ( OutputStream out =
-                    new DigestOutputStream(
-                            Files.newOutputStream(zip,
-                                    StandardOpenOption.CREATE,
-                                    StandardOpenOption.WRITE,
-                                    StandardOpenOption.TRUNCATE_EXISTING),
-                            md);  ZipOutputStream zf = new ZipOutputStream(out)) {
-                artifacts.forEach(name -> {
-                    Path src = Paths.get(name);
-                    ZipEntry ze = new ZipEntry(src.getFileName().toString());
-                    try {
-                        System.out.println("Writing " + ze.getName());
-                        zf.putNextEntry(ze);
-                        Files.copy(src, zf);
-                        zf.closeEntry();
-                    } catch (IOException ex) {
-                        err("cli.tpl.err", ex);
-                    }
-                });
-                zf.close();
+            ArtifactCache cache = ArtifactCache.of(genTemplateDir);
+            List<Path> sources = artifactPaths();
+            cache.inputs(keyFile.name, sources);
+            String archiveKey = cache.archiveKey(sources, storeOnly);
+            String cached = cache.getArchive(archiveKey);
+            if (cached != null && Files.isRegularFile(adir.resolve(cached))) {
+                zippedArtifacts = adir.resolve(cached);
+                System.out.println("Unchanged zip file: " + zippedArtifacts);
+            } else {
+                Path zip = adir.resolve(keyFile.name + ".zip");
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                try ( OutputStream out =
+                        new DigestOutputStream(
+                                Files.newOutputStream(zip,
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING),
+                                md)) {
+                    new ArtifactZipper(adir)
+                            .storeOnly(storeOnly)
+                            .write(sources, out);
+                }
                 // We now have a zip file and it's hash.
-                String basename = toString(md.digest());
-                String artifactName = basename + ".zip";
-                zippedArtifacts = zip.getParent()
-                        .resolve(artifactName);
-                Files.move(zip, zippedArtifacts,
-                        StandardCopyOption.REPLACE_EXISTING,
-                        StandardCopyOption.ATOMIC_MOVE);
-                System.out.println("Archive zip file: " + zippedArtifacts);
-                artifactURL = "s3://"
-                        + (cloud == null ? "localhost" : cloud.getBucket())
-                        + "/" + artifactName;
-                context.put("zbasefile", artifactName);
-                context.put("zbase", basename);
+                zippedArtifacts = adir.resolve(toString(md.digest()) + ".zip");
+                if (Files.isRegularFile(zippedArtifacts)) {
+                    // same hash, same bytes: leave the old one alone
+                    Files.delete(zip);
+                    System.out.println("Unchanged zip file: " + zippedArtifacts);
+                } else {
+                    Files.move(zip, zippedArtifacts,
+                            StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    System.out.println("Archive zip file: " + zippedArtifacts);
+                }
+                cache.putArchive(archiveKey, zippedArtifacts.getFileName().toString());
             }
+            cache.save();
+            String artifactName = zippedArtifacts.getFileName().toString();
+            artifactURL = "s3://"
+                    + (cloud == null ? "localhost" : cloud.getBucket())
+                    + "/" + artifactName;
+            context.put("zbasefile", artifactName);
+            context.put("zbase", artifactName.substring(0, artifactName.length() - 4));
         } catch (IOException | NoSuchAlgorithmException t) {
             err("cli.tpl.err", t);
         }
     }
     public void doUpload() {
-        if (zippedArtifacts != null)
-            try {
-            String s3key = zippedArtifacts.getFileName().toString();
-            cloud.putObject(s3key, zippedArtifacts);
-        } catch (Throwable ioe) {
-            err("cli.tpl.err", ioe);
-        }
-        recipes.values().forEach(recipe -> {
-            try {
-                recipe.upload(cloud);
-            } catch (IOException ex) {
-                err("cli.tpl.err", ex);
-            }
-        });
+        List<CloudOps> targets = regions.isEmpty()
+                ? Collections.singletonList(cloud) : regions;
+        List<Publisher.Result> results = new Publisher(targets, Integer
+                .parseInt(Main.getPreference("regionJobs", "4")))
+                .publish(zippedArtifacts, cloud.getBucket(), recipes.values());
+        Publisher.report(results);
+        for (Publisher.Result r : results)
+            if (!r.ok())
+                err("cli.tpl.err", r.error);
     }
     private static final char[] hex = "0123456789ABCDEF".toCharArray();
     public static String toString(byte[] bytes) {
@@ -614,6 +613,7 @@ public class TemplateCommand {
         return runCommand(null, command);
     }
     public int runCommand(LineReceiver lineReceiver, Deque<String> command) {
+        String[] args = command.toArray(new String[command.size()]);
         command.addFirst(getGGCli());
         command.addFirst("sudo");
         String[] nc = (String[]) command.toArray(new String[command.size()]);
@@ -624,25 +624,36 @@ public class TemplateCommand {
             System.out.println();
         }
         if (dryrun) return 0;
+        if (lineReceiver == null) lineReceiver = defaultLineReceiver;
+        CliSession session = CliSession.current();
+        if (session != null)
+            try {
+            return session.run(lineReceiver, args);
+        } catch (IOException ex) {
+            // The helper has gone away: forget it, and do it the slow way
+            if (verbose) System.out.println("CLI session: " + ex);
+            CliSession.forget();
+        }
         try {
-            ProcessBuilder pb = new ProcessBuilder(nc);
-            Map<String, String> env = pb.environment();
-            env.putIfAbsent("LOGNAME", "ggc");
-            if (lineReceiver == null) lineReceiver = defaultLineReceiver;
-            Process p = pb.start();
-            Thread stdout = new CopyThread(p.getInputStream(), lineReceiver, false);
-            Thread stderr = new CopyThread(p.getErrorStream(), lineReceiver, true);
-            stdout.start();
-            stderr.start();
-            stdout.join();
-            stderr.join();
-            return p.waitFor();
+            return spawn(lineReceiver, nc);
         } catch (Throwable ex) {
             ex.printStackTrace(System.out);
             return -1;
         }
     }
-    private static final LineReceiver defaultLineReceiver = (l, e) -> {
+    static int spawn(LineReceiver lineReceiver, String... command) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command);
+        Map<String, String> env = pb.environment();
+        env.putIfAbsent("LOGNAME", "ggc");
+        Process p = pb.start();
+        try {
+            return LinePump.pump(p, lineReceiver).get();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+    private static final LineReceiver defaultLineReceiver = (line, e) -> {
+        String l = line.toString();
         if (!l.contains("INFO") && !l.contains(".awssdk."))
             System.out.println((e ? "? " : "  ") + l);
     };
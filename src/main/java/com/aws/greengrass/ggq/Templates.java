@@ -0,0 +1,61 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import org.apache.velocity.app.*;
+import org.apache.velocity.runtime.*;
+import org.apache.velocity.runtime.resource.loader.*;
+
+/**
+ * Process-wide Velocity engines, one per local template directory. Parsed
+ * templates are cached by the engine: local ones are re-parsed when their
+ * mtime changes, the ones from the classpath are parsed once. Adding or
+ * removing files in the local template directory throws the whole engine
+ * away, since a new local file can shadow a classpath one.
+ */
+public class Templates {
+    private static final Map<Path, Templates> engines = new HashMap<>();
+    private final String signature;
+    private final VelocityEngine engine;
+    private Templates(Path dir, String sig) {
+        signature = sig;
+        engine = new VelocityEngine();
+        engine.setProperty(RuntimeConstants.RESOURCE_LOADER,
+                "file,classpath");
+        engine.setProperty("classpath.resource.loader.class",
+                ClasspathResourceLoader.class.getName());
+        engine.setProperty("classpath.resource.loader.cache", "true");
+        engine.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH,
+                dir.toString());
+        engine.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        engine.setProperty("file.resource.loader.modificationCheckInterval", "1");
+        engine.init();
+    }
+    public static synchronized VelocityEngine engine(Path localTemplateDir) {
+        Path dir = localTemplateDir.toAbsolutePath().normalize();
+        String sig = signature(dir);
+        Templates t = engines.get(dir);
+        if (t == null || !t.signature.equals(sig)) {
+            t = new Templates(dir, sig);
+            engines.put(dir, t);
+        }
+        return t.engine;
+    }
+    private static String signature(Path dir) {
+        if (!Files.isDirectory(dir)) return "";
+        try (Stream<Path> s = Files.walk(dir, 2)) {
+            return s.filter(Files::isRegularFile)
+                    .map(Path::toString)
+                    .sorted()
+                    .collect(Collectors.joining("\n"));
+        } catch (IOException | UncheckedIOException ex) {
+            return "?";
+        }
+    }
+}
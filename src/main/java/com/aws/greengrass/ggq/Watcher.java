@@ -7,12 +7,40 @@ package com.aws.greengrass.ggq;
 import com.fasterxml.jackson.databind.*;
 import java.io.*;
 import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
+import java.util.zip.*;
 
+/**
+ * ggq --watch: follows the nucleus logs and prints the interesting parts.
+ * Every log file has a worker thread that tails and decodes it; their
+ * events are merged in timestamp order by a LogMerger and written through
+ * a LogSink on its thread.
+ * <p>
+ * The workers also keep a LogIndex of every file up to date, so that when
+ * there's a filter only the lines that pass it need to be read back, and
+ * record in it how far they've read, so --follow can carry on from there.
+ * With --backfill the rotated logs are printed first, in timestamp order.
+ * Every line is counted in the LogStats, which --stats shows instead of
+ * the lines themselves, and checked against the LogAlerts rules.
+ */
 public class Watcher {
     private final TemplateCommand args;
+    LogSink.Formatter format = LogSink.formatter("plain");
+    LogFilter filter = new LogFilter();
+    boolean follow;
+    int tailLines = -1;
+    boolean backfill;
+    boolean showStats;
+    final LogStats stats = new LogStats();
+    LogAlerts alerts;
+    LogSink sink;
+    private final LogMerger merger = new LogMerger(e -> sink.accept(e), () -> sink.flush());
     private final WatchService watchService = newWatchService();
     private final Path logs;
     Watcher(TemplateCommand cmd) {
@@ -33,19 +61,34 @@ public class Watcher {
                     StandardWatchEventKinds.ENTRY_CREATE,
                     StandardWatchEventKinds.ENTRY_MODIFY,
                     StandardWatchEventKinds.ENTRY_DELETE);
+            sink = LogSink.stdout(format);
+            if (alerts != null) {
+                LogMerger.Source said = merger.source("alerts");
+                alerts.notes(m -> {
+                    try {
+                        said.put(LogEvent.note("alerts", m));
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            if (backfill) backfill();
+            Thread printer = new Thread(merger, "watch-printer");
+            printer.start();
+            if (showStats) {
+                Thread t = new Thread(this::showStats, "watch-stats");
+                t.setDaemon(true);
+                t.start();
+            }
             Files.list(logs).sorted()
-                    .forEach(n -> get(n.toString()).readToEOF());
+                    .forEach(n -> get(n.getFileName().toString()).signal());
             while (true)
                 try {
                 WatchKey w = watchService.take();
                 w.pollEvents().forEach(e -> {
-//                    System.out.println("EVENT " + e.kind() + "  on "
-//                            + e.context());
                     Path p = (Path) e.context();
-                    Watched f = get(p.toString());
-                    if (e.kind() == StandardWatchEventKinds.ENTRY_MODIFY)
-                        f.readToEOF();
-                    else f.close();
+                    // Creation and deletion too: LogTail sorts out rotation
+                    get(p.toString()).signal();
                 });
                 w.reset();
             } catch (InterruptedException ex) {
@@ -55,18 +98,136 @@ public class Watcher {
         }
         return 0;
     }
+    /*
+     * Print the rotated logs, oldest first. Each log's backups are read in
+     * order, by a thread of its own (with the decompression, if they're
+     * gzipped, and the decoding), and their events are merged by timestamp
+     * here.
+     */
+    void backfill() throws IOException {
+        Map<String, List<Path>> chains = new TreeMap<>();
+        try (DirectoryStream<Path> d = Files.newDirectoryStream(logs)) {
+            for (Path p : d) {
+                String n = p.getFileName().toString();
+                Matcher m = backupPattern.matcher(n);
+                if (m.find() && (n.endsWith(".log") || n.endsWith(".gz"))
+                        && (filter.since == Long.MIN_VALUE
+                        || Files.getLastModifiedTime(p).toMillis() >= filter.since))
+                    chains.computeIfAbsent(n.substring(0, m.start()) + ".log",
+                            k -> new ArrayList<>()).add(p);
+            }
+        }
+        PriorityQueue<Backfill> heads = new PriorityQueue<>(
+                (a, b) -> a.head.compareTo(b.head));
+        List<Backfill> all = new ArrayList<>();
+        try {
+            for (Map.Entry<String, List<Path>> c : chains.entrySet()) {
+                Backfill b = new Backfill(c.getKey(), c.getValue());
+                Thread t = new Thread(b, "backfill-" + c.getKey());
+                t.setDaemon(true);
+                t.start();
+                all.add(b);
+            }
+            for (Backfill b : all)
+                if (b.advance()) heads.add(b);
+            Backfill b;
+            while ((b = heads.poll()) != null) {
+                sink.accept(b.head);
+                if (b.advance()) heads.add(b);
+            }
+        } catch (InterruptedException ex) {
+        }
+        sink.flush();
+    }
+    private static final LogEvent END = LogEvent.note("", "");
+    private class Backfill extends Decoder implements Runnable {
+        private final List<Path> files;
+        private final BlockingQueue<LogEvent> queue = new ArrayBlockingQueue<>(1024);
+        LogEvent head;
+        Backfill(String name, List<Path> f) {
+            super(name, logs.resolve(name));
+            files = f;
+            // Rotation order; the names don't sort properly past _9
+            files.sort(Comparator.comparing((Path p) -> p.toFile().lastModified())
+                    .thenComparing(Path::toString));
+        }
+        boolean advance() throws InterruptedException {
+            head = queue.take();
+            return head != END;
+        }
+        @Override
+        void emit(LogEvent e) {
+            if (showStats && e != END) return; // it's only counted
+            try {
+                queue.put(e);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        @Override
+        public void run() {
+            byte[] b = new byte[1 << 18];
+            try {
+                for (Path p : files)
+                    try (InputStream in = p.toString().endsWith(".gz")
+                            ? new GZIPInputStream(Files.newInputStream(p), 1 << 16)
+                            : Files.newInputStream(p)) {
+                        int have = 0; // bytes of an unfinished line at the start of b
+                        int got;
+                        while ((got = in.read(b, have, b.length - have)) >= 0) {
+                            int end = have + got, start = 0;
+                            for (int i = have; i < end; i++)
+                                if (b[i] == '\n') {
+                                    receive(b, start, (i > start && b[i - 1] == '\r' ? i - 1 : i) - start, -1);
+                                    start = i + 1;
+                                }
+                            have = end - start;
+                            if (have == b.length) b = Arrays.copyOf(b, 2 * b.length);
+                            else System.arraycopy(b, start, b, 0, have);
+                        }
+                        if (have > 0) receive(b, 0, have, -1);
+                    } catch (IOException ex) {
+                        emit(LogEvent.note(p.getFileName().toString(), p + ": err " + ex));
+                    }
+            } finally {
+                emit(END);
+            }
+        }
+    }
+    private void showStats() {
+        long interval = (long) (1000 * Double.parseDouble(
+                Main.getPreference("statsInterval", "2")));
+        boolean terminal = System.console() != null;
+        StringBuilder sb = new StringBuilder();
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                sb.setLength(0);
+                if (terminal) sb.append("\u001B[H\u001B[2J"); // home, clear
+                stats.render(sb, System.currentTimeMillis());
+                if (!terminal) sb.append('\n');
+                System.out.print(sb);
+                System.out.flush();
+            }
+        } catch (InterruptedException ex) {
+        }
+    }
     private final Map<String, Watched> map = new HashMap<>();
     Pattern backupPattern = Pattern.compile("_\\d\\d\\d\\d_\\d\\d_\\d\\d");
     Watched get(String name) {
         return map.computeIfAbsent(name,
-                n -> backupPattern.matcher(n).find() || !n.endsWith(".log")
-                ? unwatched
-                : new Watched(logs, name)
-        );
+                n -> {
+                    if (backupPattern.matcher(n).find() || !n.endsWith(".log"))
+                        return unwatched;
+                    Watched w = new Watched(logs, name);
+                    Thread t = new Thread(w, "watch-" + name);
+                    t.setDaemon(true);
+                    t.start();
+                    return w;
+                });
     }
-    static final Matcher logPattern = Pattern.compile(
-            "(\\d\\d\\d\\d-\\d\\d[0-9-:.T]*Z) +\\[([^]]*)\\] +\\(([^)]*)\\) +([^:]*): +([^.]*)\\.? *(.*)\\. (\\{.*\\})")
-            .matcher("");
+    static final Pattern logPattern = Pattern.compile(
+            "(\\d\\d\\d\\d-\\d\\d[0-9-:.T]*Z) +\\[([^]]*)\\] +\\(([^)]*)\\) +([^:]*): +([^.]*)\\.? *(.*)\\. (\\{.*\\})");
     String lastService = "";
     static final Matcher commandPattern = Pattern.compile(
             "command=\\[\"(.*)\"\\]").matcher("");
@@ -74,20 +235,6 @@ public class Watcher {
     final ObjectMapper json = new ObjectMapper()
             .configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS, true)
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-    private static String gets(Map m, String key) {
-        if (m == null) return "";
-        Object v = m.get(key);
-        return v instanceof String ? (String) v
-                : v == null ? ""
-                        : v.toString();
-    }
-    private static String gets(Object m, String key) {
-        return m instanceof Map ? gets((Map) m, key) : "";
-    }
-    private static Object geto(Object m, String key) {
-        Object ret = m instanceof Map ? ((Map) m).get(key) : null;
-        return ret;
-    }
     private static String flatten(Object o) {
         if (o == null) return "null";
         if (o.getClass().isArray()) {
@@ -112,7 +259,7 @@ public class Watcher {
             return ret;
         }
     }
-    private static String trimTo(String s, int len) {
+    static String trimTo(String s, int len) {
         if (s == null) return "";
         if (s.length() > len) {
             if (s.endsWith(".log"))
@@ -125,146 +272,244 @@ public class Watcher {
         }
         return s;
     }
-    String lastsname;
-    synchronized void receive(Watched from, String line) {
-//        if (from != last) {
-//            System.out
-//                    .println("_____________________" + from.name + "_______________________");
-//            last = from;
-//        }
-        if (line.startsWith("{")) try {
-            Map logEntry = json.readValue(line, Map.class);
-            String eventType = gets(logEntry, "eventType");
-            String level = gets(logEntry, "level");
-            Object context = logEntry.get("contexts");
-            String serviceName = gets(context, "serviceName");
-//            String state = gets(context, "currentState");
-            String message = gets(logEntry, "message");
-            char tag = ' ';
-            switch (eventType) {
-                case "stderr": tag = ' ';
-                    break;
-                case "stdout": break;
-                case "shell-runner-start":
-                    tag = '%';
-                    message = trimTo(gets(context, "scriptName"), 10) + ": "
-                            + flatten(geto(context, "command"));
-                    break;
-                case "service-report-state":
-                    tag = '>';
-                    message = gets(context, "newState");
-                    break;
-                default:
-                    switch (level) {
-                        case "WARN": tag = '*';
-                            break;
-                        case "ERROR": tag = '!';
-                            break;
-                        default: tag = 0;
-                    }
-            }
-            if (tag != 0) {
-                System.out.printf("%-10s %c %s\n",
-                        trimTo(serviceName.equals(lastsname) ? "" : serviceName, 10),
-                        tag, message);
-                lastsname = serviceName;
-            } else if (args.verbose) {
-                System.out.println("===========");
-                logEntry.forEach((k, v) -> System.out
-                        .println("\t" + k + ":\t" + v));
+    private volatile boolean notifiedJson = false;
+    private class Watched extends Decoder implements Runnable {
+        private final LogTail tail;
+        private final Semaphore wake = new Semaphore(0);
+        private LogMerger.Source out;
+        private LogIndex index;
+        private Object indexedKey;
+        Watched(Path dir, String n) {
+            super(n, dir.resolve(n));
+            tail = new LogTail(path);
+        }
+        public void signal() {
+            if (wake.availablePermits() == 0) wake.release();
+        }
+        @Override
+        public void run() {
+            out = merger.source(name);
+            try {
+                index = LogIndex.of(logs, name);
+                if (tailLines >= 0) {
+                    if (Files.exists(path))
+                        tail.seek(LogTail.lastLines(path, tailLines));
+                } else if (follow) resume();
+                else if (!filter.isEmpty()) replay();
+            } catch (IOException ex) {
+                emit(LogEvent.note(name, name + ": index unusable " + ex));
+                dropIndex();
             }
-            Object cause = geto(logEntry, "cause");
-            while (cause instanceof Map) {
-                Map mo = (Map) cause;
-                Object trace = mo.get("stackTrace");
-                String emsg = gets(mo, "message");
-                if (emsg != null) System.out
-                            .printf("%-10s***%s\n", serviceName, emsg);
-                if (trace != null && trace.getClass().isArray()) {
-                    int len = Array.getLength(trace);
-                    for (int i = 0; i < len; i++) {
-                        Object tl = Array.get(trace, i);
-                        System.out.println("\t\t\t" + gets(tl, "methodName")
-                                + " at " + gets(tl, "fileName")
-                                + ":" + gets(tl, "lineNumber"));
+            try {
+                while (true) {
+                    // Poll now and then anyway, in case an event got lost
+                    wake.tryAcquire(1, TimeUnit.SECONDS);
+                    wake.drainPermits();
+                    try {
+                        if (index != null) try {
+                            index.check(null, Files.size(path));
+                        } catch (NoSuchFileException ex) {
+                        }
+                        tail.poll(this::line);
+                        out.live(); // caught up with what was there
+                        live = true;
+                        if (index != null) {
+                            checkIdentity();
+                            index.checkpoint(tail.getOffset());
+                            index.flush();
+                        }
+                    } catch (IOException ex) {
+                        emit(LogEvent.note(name, name + ": err " + ex));
                     }
                 }
-                cause = (Map) mo.get("cause");
-            }
-        } catch (Throwable ex) {
-            System.out.println(from.path + ": " + ex + "\n\t" + line);
-//                System.exit(0);
-        } else if (logPattern.reset(line).matches()) {
-            if (!notifiedJson) {
-                notifiedJson = true;
-                System.out.println(
-                        "ggq --watch only works when the log format is JSON,\n"
-                        + "you can switch with: ggq fmt=json");
+            } catch (InterruptedException ex) {
+            } finally {
+                tail.close();
+                dropIndex();
             }
-        } else System.out.println("? " + line);
-    }
-    boolean notifiedJson = false;
-    private class Watched {
-        private final String name;
-        private final Path path;
-        private BufferedReader in = EOF;
-        Watched(Path dir, String n) {
-            name = n;
-            path = dir.resolve(n);
         }
-        public boolean isClosed() {
-            return in == EOF;
+        private void resume() throws IOException {
+            Object key = LogTail.fileKey(path);
+            if (key == null) return;
+            tail.seek(index.resumeFrom(key, Files.size(path)));
         }
-        public synchronized void close() {
-            if (!isClosed()) {
-                try {
-                    in.close();
-                } catch (Throwable t) {
+        /* Bring the index up to date without printing, then print what it
+         * says passes the filter. Tailing carries on from the end. */
+        private void replay() throws IOException {
+            Object key = LogTail.fileKey(path);
+            if (key == null) return;
+            index.check(key, Files.size(path));
+            tail.seek(Math.max(0, index.getLast()));
+            tail.poll((b, off, len) -> {
+                if (isJson(b, off, len)) try {
+                    if (record.decode(b, off, len)) index(tail.getLineOffset());
+                } catch (IOException ex) {
                 }
-                in = EOF;
+            });
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                index.query(filter, (offset, timestamp, service, level) -> {
+                    int len = readLine(ch, offset);
+                    if (len >= 0) receive(lineBuf.array(), 0, len, -1);
+                });
             }
         }
-        public synchronized BufferedReader in() {
-            if (isClosed())
-                try {
-                return in = Files.newBufferedReader(path);
-            } catch (IOException ex) {
-                System.out.println("[Open error: " + ex + "]");
-                return EOF;
-            } else return in;
+        private ByteBuffer lineBuf = ByteBuffer.allocate(1 << 16);
+        /* Read the line at offset into lineBuf: returns its length, or -1
+         * if it hasn't been finished yet */
+        private int readLine(FileChannel ch, long offset) throws IOException {
+            ByteBuffer buf = lineBuf;
+            buf.clear();
+            int scanned = 0;
+            while (true) {
+                if (!buf.hasRemaining()) {
+                    buf.flip();
+                    buf = lineBuf = ByteBuffer.allocate(2 * buf.capacity()).put(buf);
+                }
+                int got = ch.read(buf, offset + buf.position());
+                byte[] b = buf.array();
+                for (; scanned < buf.position(); scanned++)
+                    if (b[scanned] == '\n')
+                        return scanned > 0 && b[scanned - 1] == '\r' ? scanned - 1 : scanned;
+                if (got <= 0) return -1;
+            }
         }
-        public synchronized void readToEOF() {
-            BufferedReader lin = in();
-//            System.out.println(name+": starting to read");
-            String line;
+        private void line(byte[] b, int off, int len) {
             try {
-                while ((line = lin.readLine()) != null)
-                    receive(this, line);
+                checkIdentity();
             } catch (IOException ex) {
-                System.out.println(name + ": err " + ex);
+                emit(LogEvent.note(name, name + ": index unusable " + ex));
+                dropIndex();
             }
+            receive(b, off, len, tail.getLineOffset());
         }
-    }
-    private final Watched unwatched = new Watched(Paths.get("/tmp"), "unwatched") {
-        @Override
-        public BufferedReader in() {
-            return EOF;
+        /* On the first line, or when the file has been rotated */
+        private void checkIdentity() throws IOException {
+            if (index != null && tail.getFileKey() != indexedKey
+                    && tail.getFileKey() != null) {
+                indexedKey = tail.getFileKey();
+                index.check(indexedKey, Long.MAX_VALUE);
+            }
         }
         @Override
-        public void readToEOF() {
+        void index(long offset) {
+            if (index != null && offset >= 0) try {
+                index.add(offset, record.timestamp, record.serviceName, record.level);
+            } catch (IOException ex) {
+                emit(LogEvent.note(name, name + ": index unusable " + ex));
+                dropIndex();
+            }
         }
-    };
-    private final BufferedReader EOF = new BufferedReader(new Reader() {
-        @Override
-        public void close() throws IOException {
+        private void dropIndex() {
+            if (index != null) index.close();
+            index = null;
         }
         @Override
-        public int read(char[] arg0, int arg1, int arg2) throws IOException {
-            return -1;
+        void emit(LogEvent e) {
+            try {
+                out.put(e);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
+    }
+    /* Turns log lines into events: for the workers, and the backfill */
+    private abstract class Decoder {
+        final String name;
+        final Path path;
+        final LogRecord record = new LogRecord();
+        boolean live; // counts towards the rates in --stats
+        Decoder(String n, Path p) {
+            name = n;
+            path = p;
+        }
+        abstract void emit(LogEvent e);
+        /* Note where the line just decoded starts */
+        void index(long offset) {
+        }
+        /* offset is where the line starts in the file, or -1 if it's
+         * already been indexed */
+        void receive(byte[] b, int off, int len, long offset) {
+            if (isJson(b, off, len)) try {
+                LogRecord r = record;
+                r.decode(b, off, len);
+                index(offset);
+                stats.record(r, live);
+                if (alerts != null) alerts.check(r);
+                if (showStats) return;
+                if (!filter.matches(r)) return;
+                String message = r.message;
+                char tag = ' ';
+                switch (r.eventType) {
+                    case "stderr": tag = ' ';
+                        break;
+                    case "stdout": break;
+                    case "shell-runner-start":
+                        tag = '%';
+                        message = trimTo(r.scriptName, 10) + ": "
+                                + flatten(r.command);
+                        break;
+                    case "service-report-state":
+                        tag = '>';
+                        message = r.newState;
+                        break;
+                    default:
+                        switch (r.level) {
+                            case "WARN": tag = '*';
+                                break;
+                            case "ERROR": tag = '!';
+                                break;
+                            default: tag = 0;
+                        }
+                }
+                List<String> detail = new ArrayList<>();
+                if (tag == 0 && args.verbose) {
+                    detail.add("===========");
+                    Map<?, ?> logEntry = json.readValue(b, off, len, Map.class);
+                    logEntry.forEach((k, v) -> detail.add("\t" + k + ":\t" + v));
+                }
+                if (r.hasCause())
+                    for (JsonNode cause = r.getCause(); cause != null && cause.isObject();
+                            cause = cause.get("cause")) {
+                        detail.add(String.format("%-10s***%s", r.serviceName,
+                                cause.path("message").asText("")));
+                        JsonNode trace = cause.get("stackTrace");
+                        if (trace != null && trace.isArray())
+                            for (JsonNode tl : trace)
+                                detail.add("\t\t\t" + tl.path("methodName").asText("")
+                                        + " at " + tl.path("fileName").asText("")
+                                        + ":" + tl.path("lineNumber").asText(""));
+                    }
+                if (tag != 0)
+                    emit(new LogEvent(r.timestamp, name, r.serviceName, r.level,
+                            r.eventType, tag, message, detail));
+                else if (!detail.isEmpty()) // nothing to say but the details
+                    emit(new LogEvent(r.timestamp, name, r.serviceName, r.level,
+                            r.eventType, tag, detail.get(0),
+                            detail.subList(1, detail.size())));
+            } catch (Throwable ex) {
+                emit(LogEvent.note(name, path + ": " + ex + "\n\t"
+                        + new String(b, off, len, StandardCharsets.UTF_8)));
+            } else {
+                String line = new String(b, off, len, StandardCharsets.UTF_8);
+                if (logPattern.matcher(line).matches()) {
+                    if (!notifiedJson) {
+                        notifiedJson = true;
+                        emit(LogEvent.note(name,
+                                "ggq --watch only works when the log format is JSON,\n"
+                                + "you can switch with: ggq fmt=json"));
+                    }
+                } else emit(LogEvent.note(name, "? " + line));
+            }
+        }
+    }
+    static boolean isJson(byte[] b, int off, int len) {
+        int first = off;
+        while (first < off + len && b[first] == ' ') first++;
+        return first < off + len && b[first] == '{';
+    }
+    private final Watched unwatched = new Watched(Paths.get("/tmp"), "unwatched") {
         @Override
-        public int read() {
-            return -1;
+        public void signal() {
         }
-    }, 1);
+    };
 }
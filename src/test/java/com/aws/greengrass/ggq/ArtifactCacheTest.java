@@ -0,0 +1,92 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+public class ArtifactCacheTest {
+    Path temp;
+    Path file;
+    @BeforeEach
+    public void setup() throws IOException {
+        temp = Files.createTempDirectory("artifactcache");
+        file = temp.resolve(".cache").resolve("artifacts.properties");
+    }
+    @AfterEach
+    public void cleanup() throws IOException {
+        Utils.deleteFileRecursively(temp.toFile());
+    }
+    Path write(String name, String body) throws IOException {
+        Path p = temp.resolve(name);
+        Files.write(p, body.getBytes(StandardCharsets.UTF_8));
+        return p;
+    }
+    Properties saved() throws IOException {
+        Properties p = new Properties();
+        try (Reader in = Files.newBufferedReader(file)) {
+            p.load(in);
+        }
+        return p;
+    }
+    @Test
+    public void hit() throws IOException {
+        Path a = write("a.txt", "one");
+        FileTime t = Files.getLastModifiedTime(a);
+        ArtifactCache c = new ArtifactCache(file);
+        String d = c.digest(a);
+        // Same size and mtime: the file isn't read again
+        write("a.txt", "two");
+        Files.setLastModifiedTime(a, t);
+        Assertions.assertEquals(d, c.digest(a));
+        c.save();
+        Assertions.assertEquals(d, new ArtifactCache(file).digest(a));
+    }
+    @Test
+    public void invalidation() throws IOException {
+        Path a = write("a.txt", "one");
+        FileTime t = Files.getLastModifiedTime(a);
+        ArtifactCache c = new ArtifactCache(file);
+        String d = c.digest(a);
+        write("a.txt", "two");
+        Files.setLastModifiedTime(a, FileTime.fromMillis(t.toMillis() + 2000));
+        String d2 = c.digest(a);
+        Assertions.assertNotEquals(d, d2);
+        write("a.txt", "three");
+        Files.setLastModifiedTime(a, FileTime.fromMillis(t.toMillis() + 2000));
+        Assertions.assertNotEquals(d2, c.digest(a));
+        List<Path> l = Collections.singletonList(a);
+        String k = c.archiveKey(l, false);
+        Assertions.assertEquals(k, c.archiveKey(l, false));
+        Assertions.assertNotEquals(k, c.archiveKey(l, true));
+        c.putArchive(k, "x.zip");
+        Assertions.assertEquals("x.zip", c.getArchive(k));
+        write("a.txt", "four");
+        Assertions.assertNull(c.getArchive(c.archiveKey(l, false)));
+    }
+    @Test
+    public void pruning() throws IOException {
+        Path a = write("a.txt", "a"), b = write("b.txt", "b"), s = write("s.txt", "s");
+        ArtifactCache c = new ArtifactCache(file);
+        c.inputs("one", Arrays.asList(a, b));
+        c.inputs("two", Arrays.asList(s));
+        c.archiveKey(Arrays.asList(a, b), false);
+        c.archiveKey(Arrays.asList(s), false);
+        c.save();
+        Assertions.assertEquals(3, saved().stringPropertyNames().stream()
+                .filter(k -> k.startsWith("f.")).count());
+        c.inputs("one", Arrays.asList(a));
+        c.save();
+        Properties p = saved();
+        Assertions.assertTrue(p.containsKey("f." + a.toAbsolutePath().normalize()));
+        Assertions.assertFalse(p.containsKey("f." + b.toAbsolutePath().normalize()));
+        // Still an input of the other component
+        Assertions.assertTrue(p.containsKey("f." + s.toAbsolutePath().normalize()));
+    }
+}
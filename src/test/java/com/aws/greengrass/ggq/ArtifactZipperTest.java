@@ -0,0 +1,80 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+import org.junit.jupiter.api.*;
+
+public class ArtifactZipperTest {
+    static Path temp;
+    static List<Path> sources = new ArrayList<>();
+    @BeforeAll
+    static public void setup() throws IOException {
+        temp = Files.createTempDirectory("zipper");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200000; i++)
+            sb.append("line ").append(i).append('\n');
+        sources.add(write("big.txt", sb.toString()));
+        sources.add(write("hello.py", "print(\"Hello from Python!\")\n"));
+        sources.add(write("model.tflite", "not really a model"));
+        sources.add(write("empty.sh", ""));
+    }
+    static Path write(String name, String body) throws IOException {
+        Path p = temp.resolve(name);
+        Files.write(p, body.getBytes(StandardCharsets.UTF_8));
+        return p;
+    }
+    byte[] zip(ArtifactZipper z) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        z.write(sources, out);
+        return out.toByteArray();
+    }
+    @Test
+    public void reproducible() throws IOException {
+        Assertions.assertArrayEquals(zip(new ArtifactZipper(temp)),
+                zip(new ArtifactZipper(temp)));
+    }
+    @Test
+    public void readable() throws IOException {
+        Path z = temp.resolve("out.zip");
+        Files.write(z, zip(new ArtifactZipper(temp)));
+        try (ZipFile zf = new ZipFile(z.toFile())) {
+            Assertions.assertEquals(sources.size(), zf.size());
+            for (Path src : sources) {
+                ZipEntry e = zf.getEntry(src.getFileName().toString());
+                Assertions.assertNotNull(e);
+                Assertions.assertEquals(
+                        ArtifactZipper.isCompressed(e.getName())
+                        ? ZipEntry.STORED : ZipEntry.DEFLATED, e.getMethod());
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                try (InputStream in = zf.getInputStream(e)) {
+                    byte[] buf = new byte[4096];
+                    int len;
+                    while ((len = in.read(buf)) > 0)
+                        body.write(buf, 0, len);
+                }
+                Assertions.assertArrayEquals(Files.readAllBytes(src),
+                        body.toByteArray());
+            }
+        }
+    }
+    @Test
+    public void storeOnly() throws IOException {
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(
+                zip(new ArtifactZipper(temp).storeOnly(true))))) {
+            ZipEntry e;
+            int n = 0;
+            while ((e = in.getNextEntry()) != null) {
+                Assertions.assertEquals(ZipEntry.STORED, e.getMethod());
+                n++;
+            }
+            Assertions.assertEquals(sources.size(), n);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Runs a CliServer in this JVM, in front of a stub greengrass-cli script.
+ */
+public class CliSessionTest {
+    static CliServer server;
+    static Path stub;
+    @BeforeAll
+    static public void setup() throws IOException {
+        stub = Files.createTempDirectory("stubcli").resolve("greengrass-cli");
+        Files.write(stub, ("#!/bin/sh\n"
+                + "echo \"args: $*\"\n"
+                + "echo oops >&2\n"
+                + "exit 3\n").getBytes());
+        stub.toFile().setExecutable(true);
+        server = new CliServer(stub.toString(), "sekrit");
+        server.readMillis = 500;
+        Thread t = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ex) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+    @AfterAll
+    static public void teardown() {
+        server.close();
+    }
+    @Test
+    public void runsCommands() throws IOException {
+        Assertions.assertFalse(server.isInProcess());
+        List<String> out = new ArrayList<>();
+        List<String> err = new ArrayList<>();
+        int rc = new CliSession(server.getPort(), "sekrit")
+                .run((l, e) -> (e ? err : out).add(l.toString()),
+                        "component", "list", "{\"a\":\n1}");
+        Assertions.assertEquals(3, rc);
+        Assertions.assertEquals(Arrays.asList("args: component list {\"a\":", "1}"), out);
+        Assertions.assertEquals(Arrays.asList("oops"), err);
+    }
+    @Test
+    public void wantsToken() {
+        Assertions.assertThrows(IOException.class, () -> new CliSession(server
+                .getPort(), "guess").run((l, e) -> {
+        }, "get-debug-password"));
+    }
+    @Test
+    public void hangsUpOnStrangers() throws IOException {
+        // One that never says anything, and one that claims a huge token
+        try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+                Socket big = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            idle.setSoTimeout(5000);
+            big.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(big.getOutputStream());
+            out.writeInt(1 << 24);
+            out.flush();
+            Assertions.assertEquals(-1, big.getInputStream().read());
+            Assertions.assertEquals(-1, idle.getInputStream().read());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import org.junit.jupiter.api.*;
+
+public class ExecRunnerTest {
+    static Exec sh(String command) {
+        return new Exec().withExec("sh", "-c", command);
+    }
+    static void await(BooleanSupplier b) throws InterruptedException {
+        for (int i = 0; i < 200 && !b.getAsBoolean(); i++)
+            Thread.sleep(50);
+        Assertions.assertTrue(b.getAsBoolean());
+    }
+    @Test
+    public void limited() throws Exception {
+        Path dir = Files.createTempDirectory("execrunner");
+        ExecRunner r = new ExecRunner(2);
+        List<Exec> l = new ArrayList<>();
+        // Each says it has started, then waits for the go
+        for (int i = 0; i < 6; i++)
+            l.add(sh("touch " + dir + "/started." + i + "; while [ ! -e " + dir
+                    + "/go ]; do sleep 0.05; done; exit " + i));
+        CompletableFuture<List<ExecRunner.Result>> all = r.runAll(l);
+        try {
+            await(() -> started(dir) == 2);
+            Assertions.assertEquals(2, r.getInFlight());
+            Thread.sleep(200); // and nothing else gets going
+            Assertions.assertEquals(2, started(dir));
+            Files.createFile(dir.resolve("go"));
+            List<ExecRunner.Result> results = all.get(20, TimeUnit.SECONDS);
+            Assertions.assertEquals(6, started(dir));
+            for (int i = 0; i < 6; i++)
+                Assertions.assertEquals(i, results.get(i).exitCode);
+            Assertions.assertTrue(results.get(0).ok());
+            Assertions.assertFalse(results.get(1).ok());
+        } finally {
+            Files.write(dir.resolve("go"), new byte[0]);
+            all.get(20, TimeUnit.SECONDS);
+            Utils.deleteFileRecursively(dir.toFile());
+        }
+    }
+    static int started(Path dir) {
+        String[] names = dir.toFile().list((d, n) -> n.startsWith("started."));
+        return names == null ? 0 : names.length;
+    }
+    @Test
+    public void timeouts() throws Exception {
+        ExecRunner r = new ExecRunner(4).timeout(200, TimeUnit.MILLISECONDS);
+        r.graceMillis = 300;
+        // One that goes quietly, one that has to be killed
+        CompletableFuture<ExecRunner.Result> a = r.submit(sh("sleep 10"));
+        CompletableFuture<ExecRunner.Result> b = r.submit(sh("trap '' TERM; sleep 10"));
+        ExecRunner.Result ra = a.get(5, TimeUnit.SECONDS), rb = b.get(5, TimeUnit.SECONDS);
+        Assertions.assertTrue(ra.timedOut);
+        Assertions.assertTrue(rb.timedOut);
+        Assertions.assertFalse(rb.ok());
+        Assertions.assertTrue(rb.wallNanos < 3_000_000_000L);
+    }
+    @Test
+    public void budget() throws Exception {
+        ExecRunner r = new ExecRunner(1).budget(300, TimeUnit.MILLISECONDS);
+        List<ExecRunner.Result> l = r.runAll(Arrays.asList(sh("sleep 5"), sh("sleep 5"), sh("true")))
+                .get(10, TimeUnit.SECONDS);
+        for (ExecRunner.Result x : l)
+            Assertions.assertTrue(x.timedOut, x.toString());
+    }
+    @Test
+    public void cancel() throws Exception {
+        ExecRunner r = new ExecRunner(1);
+        Exec running = sh("sleep 10");
+        CompletableFuture<ExecRunner.Result> f = r.submit(running);
+        CompletableFuture<ExecRunner.Result> queued = r.submit(sh("sleep 10"));
+        await(() -> running.getProcess() != null);
+        f.cancel(true);
+        queued.cancel(true);
+        await(() -> !running.getProcess().isAlive());
+        await(() -> r.getInFlight() == 0);
+        Assertions.assertTrue(r.submit(sh("exit 7")).get(5, TimeUnit.SECONDS).exitCode == 7);
+    }
+    @Test
+    public void cpu() throws Exception {
+        Assumptions.assumeTrue(Files.isDirectory(Paths.get("/proc/self")));
+        ExecRunner.Result r = new ExecRunner(1).submit(
+                sh("i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done"))
+                .get(60, TimeUnit.SECONDS);
+        Assertions.assertTrue(r.cpuMillis > 0, r.toString());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.stream.*;
+import org.junit.jupiter.api.*;
+
+/**
+ * Dry-run builds into a scratch -gtd: what gets rewritten, and what gets
+ * removed, when a component is built again.
+ */
+public class IncrementalBuildTest {
+    Path temp, gtd, recipes, artifacts;
+    @BeforeEach
+    public void setup() throws IOException {
+        temp = Files.createTempDirectory("incremental");
+        gtd = temp.resolve("gtd");
+        recipes = gtd.resolve("hello").resolve("recipes");
+        artifacts = gtd.resolve("hello").resolve("artifacts").resolve("hello");
+    }
+    @AfterEach
+    public void cleanup() throws IOException {
+        Utils.deleteFileRecursively(temp.toFile());
+    }
+    Path write(String name, String body) throws IOException {
+        Path p = temp.resolve(name);
+        Files.write(p, body.getBytes(StandardCharsets.UTF_8));
+        return p;
+    }
+    void build(Path... files) {
+        List<String> args = new ArrayList<>(Arrays.asList("--dryrun", "-gtd", gtd.toString()));
+        for (Path f : files)
+            args.add(f.toString());
+        Assertions.assertEquals(0, new Main(args.toArray(new String[0])).exec());
+    }
+    static Set<String> list(Path dir) throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.map(p -> p.getFileName().toString()).collect(Collectors.toSet());
+        }
+    }
+    static Path only(Path dir) throws IOException {
+        Set<String> l = list(dir);
+        Assertions.assertEquals(1, l.size(), l.toString());
+        return dir.resolve(l.iterator().next());
+    }
+    @Test
+    public void unchangedInputsAreNotRewritten() throws IOException {
+        Path py = write("hello.py", "print('hi')\n"), txt = write("extra.txt", "data\n");
+        build(py, txt);
+        Path recipe = only(recipes), zip = only(artifacts.resolve("0.0.0"));
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(recipe, old);
+        Files.setLastModifiedTime(zip, old);
+        build(py, txt);
+        Assertions.assertEquals(recipe, only(recipes));
+        Assertions.assertEquals(zip, only(artifacts.resolve("0.0.0")));
+        Assertions.assertEquals(old, Files.getLastModifiedTime(recipe));
+        Assertions.assertEquals(old, Files.getLastModifiedTime(zip));
+    }
+    @Test
+    public void droppedArtifactsAreRemoved() throws IOException {
+        Path py = write("hello.py", "print('hi')\n"), txt = write("extra.txt", "data\n");
+        build(py, txt);
+        Path zip = only(artifacts.resolve("0.0.0"));
+        build(py);
+        Path zip2 = only(artifacts.resolve("0.0.0"));
+        Assertions.assertNotEquals(zip, zip2);
+        Assertions.assertFalse(Files.exists(zip));
+    }
+    @Test
+    public void renamedRecipesAreRemoved() throws IOException {
+        Path py = write("hello.py", "print('hi')\n");
+        build(py);
+        Assertions.assertEquals(Collections.singleton("hello-0.0.0.yaml"), list(recipes));
+        write("hello.py", "# ComponentVersion: 1.0.0\nprint('hi')\n");
+        build(py);
+        Assertions.assertEquals(Collections.singleton("hello-1.0.0.yaml"), list(recipes));
+    }
+    @Test
+    public void otherFilesAreLeftAlone() throws IOException {
+        Path py = write("hello.py", "print('hi')\n");
+        build(py);
+        // Next to the generated directories, and an older version's artifacts
+        Path notes = Files.write(gtd.resolve("hello").resolve("notes.txt"), new byte[1]);
+        Path top = Files.write(gtd.resolve("other.txt"), new byte[1]);
+        Path older = Files.write(Files.createDirectories(artifacts.resolve("0.0.1"))
+                .resolve("keep.zip"), new byte[1]);
+        write("hello.py", "print('hello')\n");
+        build(py);
+        Assertions.assertTrue(Files.exists(notes));
+        Assertions.assertTrue(Files.exists(top));
+        Assertions.assertTrue(Files.exists(older));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+public class LinePumpTest {
+    /* Hands out at most n bytes per read, to split lines and characters */
+    static InputStream trickle(String s, int n) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, n));
+            }
+        };
+    }
+    static List<String> copy(InputStream in) throws Exception {
+        List<String> l = new ArrayList<>();
+        new LinePump(in, (line, e) -> l.add(line.toString()), false).start().get();
+        return l;
+    }
+    @Test
+    public void lines() throws Exception {
+        String s = "Component Name: héllo\r\nState: RUNNING\n\nVersion: 1.0.0 ✓\nlast";
+        for (int n : new int[]{1, 2, 3, 7, 8192})
+            Assertions.assertEquals(Arrays.asList("Component Name: héllo", "State: RUNNING",
+                    "Version: 1.0.0 ✓", "last"), copy(trickle(s, n)), "reads of " + n);
+    }
+    @Test
+    public void longLines() throws Exception {
+        char[] c = new char[50000];
+        Arrays.fill(c, 'é');
+        String big = new String(c);
+        Assertions.assertEquals(Arrays.asList("a", big, "b"), copy(trickle("a\n" + big + "\nb\n", 5000)));
+    }
+    @Test
+    public void keepEnds() throws Exception {
+        List<String> l = new ArrayList<>();
+        LinePump p = new LinePump(trickle("a\r\n\nb", 2), (line, e) -> l.add(line.toString()), false)
+                .keepEnds();
+        p.start().get();
+        Assertions.assertEquals(Arrays.asList("a\r\n", "\n", "b"), l);
+        Assertions.assertEquals(2, p.getLines());
+    }
+    @Test
+    public void processes() throws Exception {
+        // Lots of commands, one after another, don't need lots of threads
+        for (int i = 0; i < 20; i++) {
+            List<String> out = new ArrayList<>(), err = new ArrayList<>();
+            Process p = new ProcessBuilder("sh", "-c", "echo out " + i + "; echo err >&2; exit 3").start();
+            int rc = LinePump.pump(p, (line, e) -> {
+                synchronized (out) {
+                    (e ? err : out).add(line.toString());
+                }
+            }).get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(3, rc);
+            Assertions.assertEquals(Arrays.asList("out " + i), out);
+            Assertions.assertEquals(Arrays.asList("err"), err);
+        }
+        long pumps = Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().startsWith("pump-")).count();
+        Assertions.assertTrue(pumps <= 6, pumps + " pump threads");
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+public class LogAlertsTest {
+    static LogRecord record(String service, String level, String event, String state,
+            String message, long ts) throws IOException {
+        LogRecord r = new LogRecord();
+        byte[] b = ("{\"level\":\"" + level + "\",\"eventType\":\"" + event
+                + "\",\"message\":\"" + message
+                + "\",\"contexts\":{\"serviceName\":\"" + service
+                + "\",\"newState\":\"" + state + "\"},\"timestamp\":" + ts + "}")
+                .getBytes(StandardCharsets.UTF_8);
+        Assertions.assertTrue(r.decode(b, 0, b.length));
+        return r;
+    }
+    @Test
+    public void rules() {
+        LogAlerts.Rule r = LogAlerts.rule("name=x; service=a*,b; level=warn; count=3; within=90s; exec=echo a; echo b");
+        Assertions.assertEquals("x", r.name);
+        Assertions.assertEquals(3, r.minLevel);
+        Assertions.assertEquals(3, r.count);
+        Assertions.assertEquals(90000, r.within);
+        Assertions.assertEquals("echo a; echo b", r.exec);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LogAlerts.rule("colour=red"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LogAlerts.rule("match=(("));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> LogAlerts.rule("within=soon"));
+    }
+    @Test
+    public void flapping() throws Exception {
+        Path out = Files.createTempFile("alerts", ".txt");
+        BlockingQueue<String> notes = new LinkedBlockingQueue<>();
+        LogAlerts a = new LogAlerts()
+                .add("name=flapping; state=STARTING; count=4; within=1m; fifo=" + out)
+                .add("name=oom; service=hello; level=ERROR; match=OutOfMemory; exec=echo $GGQ_SERVICE $GGQ_RULE");
+        a.notes(notes::add);
+        long now = 10000000;
+        a.clock = () -> now;
+        for (int i = 0; i < 3; i++)
+            a.check(record("hello", "INFO", "service-report-state", "STARTING", "", now - 30000 + i));
+        a.check(record("other", "INFO", "service-report-state", "STARTING", "", now - 20000));
+        a.check(record("hello", "INFO", "service-report-state", "RUNNING", "", now - 20000));
+        a.check(record("hello", "ERROR", "stderr", "", "OutOfMemory!", now - 120000)); // too old
+        a.check(record("hello", "WARN", "stderr", "", "OutOfMemory!", now - 1000)); // too low
+        Assertions.assertNull(notes.poll(200, TimeUnit.MILLISECONDS));
+        a.check(record("hello", "INFO", "service-report-state", "STARTING", "", now - 10000));
+        Assertions.assertEquals("[alert flapping] hello (4 times): STARTING", notes.poll(5, TimeUnit.SECONDS));
+        a.check(record("hello", "ERROR", "stderr", "", "java.lang.OutOfMemoryError", now));
+        Assertions.assertEquals("[alert oom] hello: java.lang.OutOfMemoryError", notes.poll(5, TimeUnit.SECONDS));
+        Assertions.assertEquals("hello oom", notes.poll(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(Arrays.asList("[alert flapping] hello (4 times): STARTING"),
+                Files.readAllLines(out));
+        // It takes another four to go off again
+        a.check(record("hello", "INFO", "service-report-state", "STARTING", "", now - 5000));
+        Assertions.assertNull(notes.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
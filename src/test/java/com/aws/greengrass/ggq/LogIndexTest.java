@@ -0,0 +1,105 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+public class LogIndexTest {
+    static Path temp;
+    @BeforeAll
+    static public void setup() throws IOException {
+        temp = Files.createTempDirectory("logindex");
+    }
+    static List<Long> query(LogIndex x, LogFilter f) throws IOException {
+        List<Long> l = new ArrayList<>();
+        x.query(f, (offset, ts, service, level) -> l.add(offset));
+        return l;
+    }
+    @Test
+    public void queries() throws IOException {
+        Path p = temp.resolve("q.idx");
+        LogIndex x = new LogIndex(p);
+        x.check("file1", 0);
+        String[] services = {"main", "foo", "bar"};
+        String[] levels = {"DEBUG", "INFO", "WARN", "ERROR"};
+        for (int i = 0; i < 2000; i++)
+            x.add(100L * i, 1000L + i, services[i % 3], levels[i % 4]);
+        x.add(500, 5, "foo", "ERROR"); // already indexed
+        Assertions.assertEquals(2000, x.size());
+        Assertions.assertEquals(2000, query(x, new LogFilter()).size());
+        LogFilter f = new LogFilter();
+        f.since = 2990;
+        Assertions.assertEquals(Arrays.asList(199000L, 199100L, 199200L,
+                199300L, 199400L, 199500L, 199600L, 199700L, 199800L, 199900L), query(x, f));
+        f.services("f*,ba?").level("error");
+        Assertions.assertEquals(Arrays.asList(199100L, 199900L), query(x, f));
+        x.close();
+        // It's all still there next time, as long as it's the same file
+        x = new LogIndex(p);
+        Assertions.assertEquals(2000, x.size());
+        Assertions.assertEquals(199900, x.getLast());
+        Assertions.assertEquals(Arrays.asList(199100L, 199900L), query(x, f));
+        x.check("file1", 199900);
+        Assertions.assertEquals(0, x.size()); // truncated
+        x.add(0, 1, "foo", "INFO");
+        x.check("file2", 1000);
+        Assertions.assertEquals(0, x.size()); // rotated
+        x.close();
+    }
+    @Test
+    public void tornRecord() throws IOException {
+        Path p = temp.resolve("torn.idx");
+        LogIndex x = new LogIndex(p);
+        x.check("f", 0);
+        x.add(0, 1, "a", "INFO");
+        x.add(10, 2, "b", "WARN");
+        x.close();
+        Files.write(p, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+        x = new LogIndex(p);
+        Assertions.assertEquals(2, x.size());
+        LogFilter f = new LogFilter().services("b");
+        Assertions.assertEquals(Arrays.asList(10L), query(x, f));
+        x.close();
+    }
+    @Test
+    public void checkpoint() throws IOException {
+        Path p = temp.resolve("cp.idx");
+        LogIndex x = new LogIndex(p);
+        Assertions.assertEquals(500, x.resumeFrom("f", 500)); // never read: the end
+        x.check("f", 0);
+        x.add(0, 1, "a", "INFO");
+        x.checkpoint(120);
+        x.close();
+        x = new LogIndex(p);
+        Assertions.assertEquals(120, x.resumeFrom("f", 500));
+        Assertions.assertEquals(0, x.resumeFrom("f", 100)); // truncated
+        Assertions.assertEquals(0, x.resumeFrom("g", 500)); // rotated
+        Assertions.assertEquals(1, x.size());
+        x.close();
+    }
+    @Test
+    public void oneWatcherAtATime() throws IOException {
+        Path p = temp.resolve("l.idx");
+        LogIndex x = new LogIndex(p);
+        x.check("f", 0);
+        x.add(0, 1, "a", "INFO");
+        Assertions.assertThrows(IOException.class, () -> new LogIndex(p));
+        x.close();
+        x = new LogIndex(p);
+        Assertions.assertEquals(1, x.size());
+        x.close();
+    }
+    @Test
+    public void since() {
+        Assertions.assertEquals(1000000 - 90000, LogFilter.parseSince("90s", 1000000));
+        Assertions.assertEquals(10000000 - 600000, LogFilter.parseSince("10", 10000000));
+        Assertions.assertEquals(1614592800000L, LogFilter.parseSince("2021-03-01T10:00:00Z", 0));
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> LogFilter.parseSince("yesterday", 0));
+    }
+}
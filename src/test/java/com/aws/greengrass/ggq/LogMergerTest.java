@@ -0,0 +1,85 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+public class LogMergerTest {
+    static LogEvent event(String source, long ts) {
+        return new LogEvent(ts, source, source, "INFO", "x", '*', source + ts,
+                Collections.emptyList());
+    }
+    @Test
+    public void mergedByTimestamp() throws Exception {
+        List<String> out = Collections.synchronizedList(new ArrayList<>());
+        LogMerger m = new LogMerger(e -> out.add(e.message), () -> {
+        });
+        LogMerger.Source a = m.source("a");
+        LogMerger.Source b = m.source("b");
+        Thread t = new Thread(m);
+        t.start();
+        a.put(event("a", 1));
+        a.put(event("a", 3));
+        b.put(event("b", 2));
+        b.put(event("b", 4));
+        m.stop();
+        t.join();
+        Assertions.assertEquals(Arrays.asList("a1", "b2", "a3", "b4"), out);
+    }
+    @Test
+    public void dropsWhenStalled() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> out = Collections.synchronizedList(new ArrayList<>());
+        LogMerger m = new LogMerger(e -> {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+            }
+            out.add(e.message);
+        }, () -> {
+        });
+        m.capacity = 4;
+        m.maxPending = 0;
+        m.patienceMillis = 10;
+        LogMerger.Source a = m.source("a");
+        a.live();
+        Thread t = new Thread(m);
+        t.start();
+        for (int i = 0; i < 100; i++)
+            a.put(event("a", i));
+        Assertions.assertTrue(m.getDropped() > 0);
+        release.countDown();
+        m.stop();
+        t.join();
+        Assertions.assertEquals(100 - m.getDropped() + 1, out.size());
+        Assertions.assertTrue(out.stream().anyMatch(s -> s.contains("dropped")));
+    }
+    @Test
+    public void waitsUntilLive() throws Exception {
+        List<String> out = Collections.synchronizedList(new ArrayList<>());
+        LogMerger m = new LogMerger(e -> {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+            }
+            out.add(e.message);
+        }, () -> {
+        });
+        m.capacity = 4;
+        m.maxPending = 0;
+        m.patienceMillis = 1;
+        LogMerger.Source a = m.source("a");
+        Thread t = new Thread(m);
+        t.start();
+        for (int i = 0; i < 100; i++)
+            a.put(event("a", i));
+        m.stop();
+        t.join();
+        Assertions.assertEquals(0, m.getDropped());
+        Assertions.assertEquals(100, out.size());
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import org.junit.jupiter.api.*;
+
+public class LogRecordTest {
+    static boolean decode(LogRecord r, String line) throws IOException {
+        byte[] b = ("  " + line + "  ").getBytes(StandardCharsets.UTF_8);
+        return r.decode(b, 2, b.length - 4);
+    }
+    @Test
+    public void fields() throws IOException {
+        LogRecord r = new LogRecord();
+        Assertions.assertTrue(decode(r, "{\"thread\":\"main\",\"level\":\"INFO\","
+                + "\"eventType\":\"service-report-state\",\"message\":\"héllo\","
+                + "\"extra\":{\"a\":[1,{\"b\":2}]},"
+                + "\"contexts\":{\"serviceName\":\"hello\",\"newState\":\"RUNNING\",\"other\":\"x\"},"
+                + "\"loggerName\":\"x\",\"timestamp\":1612345678901,\"cause\":null}"));
+        Assertions.assertEquals("INFO", r.level);
+        Assertions.assertEquals("service-report-state", r.eventType);
+        Assertions.assertEquals("héllo", r.message);
+        Assertions.assertEquals("hello", r.serviceName);
+        Assertions.assertEquals("RUNNING", r.newState);
+        Assertions.assertEquals(1612345678901L, r.timestamp);
+        Assertions.assertFalse(r.hasCause());
+        Assertions.assertNull(r.getCause());
+    }
+    @Test
+    public void reuseAndCause() throws IOException {
+        LogRecord r = new LogRecord();
+        decode(r, "{\"level\":\"ERROR\",\"message\":\"boom\",\"contexts\":{\"serviceName\":\"a\"},"
+                + "\"cause\":{\"message\":\"outer\",\"stackTrace\":[{\"methodName\":\"run\","
+                + "\"fileName\":\"A.java\",\"lineNumber\":12}],\"cause\":{\"message\":\"inner\"}}}");
+        Assertions.assertTrue(r.hasCause());
+        Assertions.assertEquals("outer", r.getCause().path("message").asText());
+        Assertions.assertEquals("A.java", r.getCause().get("stackTrace").get(0)
+                .path("fileName").asText());
+        Assertions.assertEquals("inner", r.getCause().get("cause").path("message").asText());
+        decode(r, "{\"level\":\"WARN\"}");
+        Assertions.assertEquals("WARN", r.level);
+        Assertions.assertEquals("", r.message);
+        Assertions.assertEquals("", r.serviceName);
+        Assertions.assertFalse(r.hasCause());
+        Assertions.assertFalse(decode(r, "[1,2]"));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+public class LogSinkTest {
+    static LogEvent event(String service, char tag, String message, String... detail) {
+        return new LogEvent(1, service + ".log", service, "INFO", "stdout", tag,
+                message, Arrays.asList(detail));
+    }
+    @Test
+    public void plain() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogSink sink = new LogSink(out, LogSink.formatter("plain"));
+        sink.maxDelayNanos = Long.MAX_VALUE;
+        sink.accept(event("hello", '>', "héllo"));
+        sink.accept(event("hello", '!', "broken", "  at here"));
+        sink.accept(LogEvent.note("x", "a note"));
+        Assertions.assertEquals(0, out.size());
+        sink.flush();
+        Assertions.assertEquals("hello      > héllo\n"
+                + "           ! broken\n  at here\n"
+                + "a note\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+    @Test
+    public void json() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogSink sink = new LogSink(out, LogSink.formatter("json"));
+        sink.accept(event("hello", '*', "say \"hi\"", "d"));
+        sink.flush();
+        Assertions.assertEquals("{\"timestamp\":1,\"source\":\"hello.log\",\"service\":\"hello\","
+                + "\"level\":\"INFO\",\"eventType\":\"stdout\",\"tag\":\"*\","
+                + "\"message\":\"say \\\"hi\\\"\",\"detail\":[\"d\"]}\n",
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+    @Test
+    public void bigBatches() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogSink sink = new LogSink(out, LogSink.formatter("plain"));
+        sink.maxDelayNanos = Long.MAX_VALUE;
+        char[] c = new char[1000];
+        Arrays.fill(c, 'x');
+        String m = new String(c);
+        for (int i = 0; i < 200; i++)
+            sink.accept(event("s", '>', m));
+        Assertions.assertTrue(out.size() > 0);
+        sink.flush();
+        Assertions.assertEquals(200 * (m.length() + 14), out.size());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+
+public class LogStatsTest {
+    static void record(LogStats s, String json) throws IOException {
+        LogRecord r = new LogRecord();
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        Assertions.assertTrue(r.decode(b, 0, b.length));
+        s.record(r);
+    }
+    static String line(String service, String level, String event, String state, long ts) {
+        return "{\"level\":\"" + level + "\",\"eventType\":\"" + event
+                + "\",\"contexts\":{\"serviceName\":\"" + service
+                + "\",\"newState\":\"" + state + "\"},\"timestamp\":" + ts + "}";
+    }
+    @Test
+    public void states() throws IOException {
+        LogStats s = new LogStats();
+        record(s, line("foo", "INFO", "service-report-state", "STARTING", 1000));
+        record(s, line("foo", "INFO", "service-report-state", "RUNNING", 3000));
+        record(s, line("foo", "ERROR", "stderr", "", 4000));
+        record(s, line("foo", "INFO", "service-report-state", "ERRORED", 10000));
+        record(s, line("bar", "WARN", "stdout", "", 10000));
+        LogStats.Service foo = s.get("foo");
+        Assertions.assertEquals(4, foo.lines.sum());
+        Assertions.assertEquals(1, foo.errors.sum());
+        Assertions.assertEquals(3, foo.changes.sum());
+        Assertions.assertEquals("ERRORED", foo.getState());
+        Map<String, Long> expect = new HashMap<>();
+        expect.put("STARTING", 2000L);
+        expect.put("RUNNING", 7000L);
+        expect.put("ERRORED", 5000L);
+        Assertions.assertEquals(expect, foo.timeIn(15000));
+        Assertions.assertEquals(1, s.get("bar").warnings.sum());
+        StringBuilder sb = new StringBuilder();
+        s.render(sb, 15000);
+        String[] rows = sb.toString().split("\n");
+        Assertions.assertEquals(3, rows.length);
+        Assertions.assertTrue(rows[1].startsWith("foo "));
+        Assertions.assertTrue(rows[1].contains("RUNNING 7s, ERRORED 5s, STARTING 2s"), rows[1]);
+    }
+    @Test
+    public void concurrent() throws Exception {
+        LogStats s = new LogStats();
+        LogRecord r = new LogRecord();
+        byte[] b = line("busy", "WARN", "stdout", "", 1).getBytes(StandardCharsets.UTF_8);
+        r.decode(b, 0, b.length);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++)
+            pool.submit(() -> {
+                for (int i = 0; i < 100000; i++)
+                    s.record(r);
+            });
+        pool.shutdown();
+        Assertions.assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+        Assertions.assertEquals(400000, s.get("busy").lines.sum());
+        Assertions.assertEquals(400000, s.get("busy").warnings.sum());
+    }
+    @Test
+    public void historyIsNotARate() throws IOException {
+        LogStats s = new LogStats();
+        LogRecord r = new LogRecord();
+        byte[] b = line("old", "INFO", "stdout", "", 1).getBytes(StandardCharsets.UTF_8);
+        r.decode(b, 0, b.length);
+        for (int i = 0; i < 1000; i++)
+            s.record(r, false);
+        StringBuilder sb = new StringBuilder();
+        s.render(sb, 15000);
+        String row = sb.toString().split("\n")[1];
+        Assertions.assertTrue(row.matches("old +0\\.0 +1000 .*"), row);
+    }
+    @Test
+    public void durations() {
+        Assertions.assertEquals("59s", LogStats.duration(59999));
+        Assertions.assertEquals("2m5s", LogStats.duration(125000));
+        Assertions.assertEquals("1h1m", LogStats.duration(3660000));
+        Assertions.assertEquals("2d3h", LogStats.duration((51 * 3600 + 5) * 1000L));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+public class LogTailTest {
+    static Path temp;
+    @BeforeAll
+    static public void setup() throws IOException {
+        temp = Files.createTempDirectory("logtail");
+    }
+    @AfterAll
+    static public void cleanup() throws IOException {
+        Utils.deleteFileRecursively(temp.toFile());
+    }
+    static void append(Path p, String s) throws IOException {
+        Files.write(p, s.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    static List<String> poll(LogTail t) throws IOException {
+        List<String> l = new ArrayList<>();
+        t.poll((b, off, len) -> l.add(new String(b, off, len, StandardCharsets.UTF_8)));
+        return l;
+    }
+    @Test
+    public void partialLines() throws IOException {
+        Path p = temp.resolve("partial.log");
+        LogTail t = new LogTail(p);
+        Assertions.assertEquals(Collections.emptyList(), poll(t));
+        append(p, "one\r\ntwo\nthr");
+        Assertions.assertEquals(Arrays.asList("one", "two"), poll(t));
+        Assertions.assertEquals(9, t.getOffset());
+        append(p, "ee\n\nfour");
+        Assertions.assertEquals(Arrays.asList("three", ""), poll(t));
+        t.close();
+    }
+    @Test
+    public void truncation() throws IOException {
+        Path p = temp.resolve("trunc.log");
+        LogTail t = new LogTail(p);
+        append(p, "a long first line\nand a second\n");
+        Assertions.assertEquals(2, poll(t).size());
+        Files.write(p, "short\n".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(Arrays.asList("short"), poll(t));
+        t.close();
+    }
+    @Test
+    public void rotation() throws IOException {
+        Path p = temp.resolve("rot.log");
+        LogTail t = new LogTail(p);
+        append(p, "old 1\n");
+        Assertions.assertEquals(Arrays.asList("old 1"), poll(t));
+        append(p, "old 2\nold 3");
+        Files.move(p, temp.resolve("rot_2021_01_01_0.log"));
+        append(p, "new 1\n");
+        Assertions.assertEquals(Arrays.asList("old 2", "old 3", "new 1"), poll(t));
+        t.close();
+    }
+    @Test
+    public void deletion() throws IOException {
+        Path p = temp.resolve("del.log");
+        LogTail t = new LogTail(p);
+        append(p, "gone 1\ngone 2");
+        Assertions.assertEquals(Arrays.asList("gone 1"), poll(t));
+        Files.delete(p);
+        Assertions.assertEquals(Arrays.asList("gone 2"), poll(t));
+        Assertions.assertEquals(Collections.emptyList(), poll(t));
+        append(p, "back\n");
+        Assertions.assertEquals(Arrays.asList("back"), poll(t));
+        t.close();
+    }
+    @Test
+    public void lastLines() throws IOException {
+        Path p = temp.resolve("last.log");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            sb.append("line ").append(i).append('\n');
+        append(p, sb.toString());
+        LogTail t = new LogTail(p);
+        t.seek(LogTail.lastLines(p, 3));
+        Assertions.assertEquals(Arrays.asList("line 19997", "line 19998", "line 19999"), poll(t));
+        Assertions.assertEquals(Files.size(p), LogTail.lastLines(p, 0));
+        Assertions.assertEquals(0, LogTail.lastLines(p, 30000));
+        append(p, "part");
+        Assertions.assertEquals(Files.size(p) - 4, LogTail.lastLines(p, 0));
+        Assertions.assertEquals(Files.size(p) - 4, LogTail.lastLines(p, 1));
+        Assertions.assertEquals(Files.size(p) - 15, LogTail.lastLines(p, 2));
+        t.close();
+    }
+    @Test
+    public void throughput() throws IOException {
+        Path p = temp.resolve("big.log");
+        String line = "{\"thread\":\"main\",\"level\":\"INFO\",\"eventType\":\"stdout\","
+                + "\"message\":\"Hello from the benchmark\",\"contexts\":{\"serviceName\":\"hello\"},"
+                + "\"loggerName\":\"hello\",\"timestamp\":1612345678901,\"cause\":null}\n";
+        int lines = 200000;
+        try (Writer w = Files.newBufferedWriter(p)) {
+            for (int i = 0; i < lines; i++)
+                w.write(line);
+        }
+        LogTail t = new LogTail(p);
+        long[] bytes = {0};
+        long start = System.nanoTime();
+        int n = t.poll((b, off, len) -> bytes[0] += len);
+        double secs = (System.nanoTime() - start) / 1e9;
+        t.close();
+        Assertions.assertEquals(lines, n);
+        Assertions.assertEquals((long) lines * (line.length() - 1), bytes[0]);
+        // It's meant to manage 500k lines/sec; this leaves room for a busy machine
+        Assertions.assertTrue(n / secs > 100000, () -> String.format("%,.0f lines/sec", n / secs));
+        Files.delete(p);
+    }
+}
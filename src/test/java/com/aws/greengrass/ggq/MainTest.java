@@ -11,6 +11,10 @@ public class MainTest {
     @Test void t1() {
         Assertions.assertEquals(0, run("--dryrun", "hello:msg=23", "fmt=json", "jvm=-Xmx32m"));
     }
+    @Test void batchRejectsWatchAndFiles() {
+        Assertions.assertEquals(1, run("--batch", "/nonexistent", "-w"));
+        Assertions.assertEquals(1, run("--batch", "/nonexistent", "hello.py"));
+    }
     public int run(String... args) {
         return new Main(args).exec();
     }
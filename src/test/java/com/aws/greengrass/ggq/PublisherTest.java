@@ -0,0 +1,47 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.util.*;
+import org.junit.jupiter.api.*;
+
+public class PublisherTest {
+    static RecipieFile recipe(String name, String... deps) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("componentName: ").append(name).append('\n')
+                .append("componentVersion: 1.0.0\n");
+        if (deps.length > 0) {
+            sb.append("componentDependencies:\n");
+            for (String d : deps)
+                sb.append("  ").append(d).append(":\n    versionRequirement: 1.0.0\n");
+        }
+        sb.append("lifecycle:\n  run: echo ").append(name).append('\n');
+        return new RecipieFile(name + "-1.0.0.yml", sb.toString(), true);
+    }
+    static List<String> names(List<RecipieFile> l) {
+        List<String> n = new ArrayList<>();
+        l.forEach(f -> n.add(f.name));
+        return n;
+    }
+    @Test
+    public void dependenciesFirst() {
+        RecipieFile app = recipe("app", "postgres", "lua");
+        RecipieFile postgres = recipe("postgres", "docker");
+        RecipieFile docker = recipe("docker");
+        RecipieFile lua = recipe("lua");
+        Assertions.assertTrue(app.dependsOn("lua"));
+        Assertions.assertFalse(app.dependsOn("docker"));
+        Assertions.assertFalse(lua.dependsOn("run"));
+        Assertions.assertEquals(Arrays.asList("docker", "postgres", "lua", "app"),
+                names(Publisher.order(Arrays.asList(app, postgres, docker, lua))));
+    }
+    @Test
+    public void cycles() {
+        RecipieFile a = recipe("a", "b");
+        RecipieFile b = recipe("b", "a");
+        Assertions.assertEquals(Arrays.asList("b", "a"),
+                names(Publisher.order(Arrays.asList(a, b))));
+    }
+}
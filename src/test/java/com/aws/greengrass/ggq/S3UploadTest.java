@@ -0,0 +1,192 @@
+/*
+ * Copyright Amazon.com, Inc. or its affiliates. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.aws.greengrass.ggq;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.jupiter.api.*;
+import software.amazon.awssdk.core.sync.*;
+import software.amazon.awssdk.services.s3.*;
+import software.amazon.awssdk.services.s3.model.*;
+
+public class S3UploadTest {
+    static Path temp;
+    static Path big;
+    static byte[] content;
+    @BeforeAll
+    static public void setup() throws IOException {
+        temp = Files.createTempDirectory("s3upload");
+        content = new byte[1000003];
+        new Random(42).nextBytes(content);
+        big = temp.resolve("big.zip");
+        Files.write(big, content);
+    }
+    /* Just enough of S3 to do multipart uploads, in memory */
+    static class FakeS3 implements S3Client {
+        final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+        final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+        volatile int failPart = -1;
+        final AtomicInteger heads = new AtomicInteger();
+        @Override
+        public String serviceName() {
+            return "s3";
+        }
+        @Override
+        public void close() {
+        }
+        static byte[] read(RequestBody body) {
+            try (InputStream in = body.contentStreamProvider().newStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    out.write(buf, 0, len);
+                return out.toByteArray();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        static void check(String md5, byte[] b) {
+            if (!Base64.getEncoder().encodeToString(S3Upload.md5(b, b.length)).equals(md5))
+                throw S3Exception.builder().message("BadDigest").build();
+        }
+        @Override
+        public PutObjectResponse putObject(PutObjectRequest r, RequestBody body) {
+            byte[] b = read(body);
+            check(r.contentMD5(), b);
+            objects.put(r.key(), b);
+            return PutObjectResponse.builder().build();
+        }
+        @Override
+        public HeadObjectResponse headObject(HeadObjectRequest r) {
+            heads.incrementAndGet();
+            byte[] b = objects.get(r.key());
+            if (b == null)
+                throw NoSuchKeyException.builder().message("no such key").build();
+            return HeadObjectResponse.builder().contentLength((long) b.length).build();
+        }
+        @Override
+        public CreateMultipartUploadResponse createMultipartUpload(CreateMultipartUploadRequest r) {
+            String id = UUID.randomUUID().toString();
+            uploads.put(id, new ConcurrentSkipListMap<>());
+            return CreateMultipartUploadResponse.builder().uploadId(id).build();
+        }
+        @Override
+        public UploadPartResponse uploadPart(UploadPartRequest r, RequestBody body) {
+            if (r.partNumber() == failPart)
+                throw S3Exception.builder().message("connection reset").build();
+            byte[] b = read(body);
+            check(r.contentMD5(), b);
+            uploads.get(r.uploadId()).put(r.partNumber(), b);
+            return UploadPartResponse.builder()
+                    .eTag('"' + S3Upload.hex(S3Upload.md5(b, b.length)) + '"').build();
+        }
+        @Override
+        public ListPartsResponse listParts(ListPartsRequest r) {
+            Map<Integer, byte[]> parts = uploads.get(r.uploadId());
+            if (parts == null)
+                throw NoSuchUploadException.builder().message("no such upload").build();
+            // two at a time, to exercise paging
+            int from = r.partNumberMarker() == null ? 0 : r.partNumberMarker();
+            List<Part> l = new ArrayList<>();
+            Integer next = null;
+            for (Map.Entry<Integer, byte[]> e : parts.entrySet())
+                if (e.getKey() > from) {
+                    if (l.size() == 2) {
+                        next = l.get(1).partNumber();
+                        break;
+                    }
+                    l.add(Part.builder().partNumber(e.getKey()).eTag(S3Upload
+                            .hex(S3Upload.md5(e.getValue(), e.getValue().length))).build());
+                }
+            return ListPartsResponse.builder().parts(l).isTruncated(next != null)
+                    .nextPartNumberMarker(next).build();
+        }
+        @Override
+        public CompleteMultipartUploadResponse completeMultipartUpload(CompleteMultipartUploadRequest r) {
+            Map<Integer, byte[]> parts = uploads.remove(r.uploadId());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (CompletedPart p : r.multipartUpload().parts())
+                out.write(parts.get(p.partNumber()), 0, parts.get(p.partNumber()).length);
+            objects.put(r.key(), out.toByteArray());
+            return CompleteMultipartUploadResponse.builder().build();
+        }
+    }
+    @Test
+    public void multipart() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        long[] last = {0};
+        S3Upload u = new S3Upload(s3, "b", "k.zip", big).partSize(100000).jobs(3)
+                .progress((done, total, rate) -> {
+                    synchronized (last) {
+                        last[0] = Math.max(last[0], done);
+                    }
+                });
+        u.run();
+        Assertions.assertArrayEquals(content, s3.objects.get("k.zip"));
+        Assertions.assertEquals(11, u.getPartsSent());
+        Assertions.assertEquals(content.length, last[0]);
+    }
+    @Test
+    public void small() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        new S3Upload(s3, "b", "k.zip", big).partSize(8 << 20).run();
+        Assertions.assertArrayEquals(content, s3.objects.get("k.zip"));
+        Assertions.assertTrue(s3.uploads.isEmpty());
+    }
+    @Test
+    public void resume() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        Path journal = temp.resolve("journal");
+        s3.failPart = 7;
+        Assertions.assertThrows(IOException.class, () -> new S3Upload(s3, "b",
+                "k.zip", big).partSize(100000).jobs(1).journal(journal).run());
+        Assertions.assertFalse(s3.objects.containsKey("k.zip"));
+        s3.failPart = -1;
+        S3Upload u = new S3Upload(s3, "b", "k.zip", big).partSize(100000).jobs(2)
+                .journal(journal);
+        u.run();
+        Assertions.assertArrayEquals(content, s3.objects.get("k.zip"));
+        Assertions.assertTrue(u.getPartsSent() <= 5); // at most 7..11
+        Assertions.assertEquals(0, Files.list(journal).count());
+    }
+    @Test
+    public void putIfAbsent() throws IOException {
+        FakeS3 s3 = new FakeS3();
+        Path keys = temp.resolve("b.keys");
+        Files.deleteIfExists(keys);
+        CloudOps.KnownKeys known = new CloudOps.KnownKeys(keys, 60000);
+        AtomicInteger uploads = new AtomicInteger();
+        CloudOps.Upload upload = () -> {
+            uploads.incrementAndGet();
+            new S3Upload(s3, "b", big.getFileName().toString(), big).run();
+        };
+        String k = big.getFileName().toString();
+        // Not there: HEAD, then upload
+        Assertions.assertTrue(CloudOps.putIfAbsent(s3, "b", k, big, known, upload));
+        Assertions.assertEquals(1, s3.heads.get());
+        Assertions.assertEquals(1, uploads.get());
+        // In the manifest: no HEAD at all
+        Assertions.assertFalse(CloudOps.putIfAbsent(s3, "b", k, big, known, upload));
+        Assertions.assertEquals(1, s3.heads.get());
+        // In the bucket, not in the manifest: HEAD only
+        CloudOps.KnownKeys empty = new CloudOps.KnownKeys(temp.resolve("none.keys"), 60000);
+        Assertions.assertFalse(CloudOps.putIfAbsent(s3, "b", k, big, empty, upload));
+        Assertions.assertEquals(2, s3.heads.get());
+        Assertions.assertEquals(1, uploads.get());
+        // Deleted from the bucket after the manifest entry went stale
+        s3.objects.clear();
+        Files.write(keys, (k + " 1\n").getBytes());
+        Assertions.assertTrue(CloudOps.putIfAbsent(s3, "b", k, big,
+                new CloudOps.KnownKeys(keys, 60000), upload));
+        Assertions.assertEquals(3, s3.heads.get());
+        Assertions.assertEquals(2, uploads.get());
+        Assertions.assertArrayEquals(content, s3.objects.get(k));
+        Assertions.assertTrue(new CloudOps.KnownKeys(keys, 60000).fresh(k));
+    }
+}
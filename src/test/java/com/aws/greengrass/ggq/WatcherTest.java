@@ -5,6 +5,13 @@
 package com.aws.greengrass.ggq;
 
 import com.aws.greengrass.ggq.Main;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
 import org.junit.jupiter.api.*;
 
 /**
@@ -46,4 +53,89 @@ public class WatcherTest {
             t.join(4000);
         } catch (InterruptedException ex) { Assertions.fail(); }
     }
+    /**
+     * --backfill --stats: the backfill only counts the old lines, and then
+     * watching carries on with the live log.
+     */
+    @Test
+    public void backfillWithStats() throws Exception {
+        Path root = Files.createTempDirectory("watcher");
+        Path logs = Files.createDirectories(root.resolve("logs"));
+        Files.write(logs.resolve("hello_2021_03_01_10_0.log"), line("old", 20));
+        Files.write(logs.resolve("hello.log"), line("new", 30));
+        TemplateCommand tc = new TemplateCommand();
+        tc.rootPath = root.toString();
+        Watcher w = new Watcher(tc);
+        w.backfill = true;
+        w.showStats = true;
+        Thread t = new Thread(w::watch);
+        t.setDaemon(true);
+        t.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (w.stats.get("new").lines.sum() == 0
+                    && System.currentTimeMillis() < deadline)
+                Thread.sleep(20);
+            Assertions.assertEquals(1, w.stats.get("old").lines.sum());
+            Assertions.assertEquals(1, w.stats.get("new").lines.sum());
+        } finally {
+            t.interrupt();
+            Utils.deleteFileRecursively(root.toFile());
+            Utils.deleteFileRecursively(LogIndex.dir.resolve(Long.toHexString(LogIndex
+                    .hash(logs.toAbsolutePath().normalize().toString()))).toFile());
+        }
+    }
+    /**
+     * --backfill: each log's backups in rotation (mtime) order, gzipped or
+     * not, merged with the other logs' by timestamp; backups last written
+     * before --since aren't read at all.
+     */
+    @Test
+    public void backfillMergesByTimestamp() throws Exception {
+        Path root = Files.createTempDirectory("watcher");
+        Path logs = Files.createDirectories(root.resolve("logs"));
+        long now = System.currentTimeMillis();
+        // _10 sorts before _9, but was rotated after it
+        backup(logs.resolve("hello_2021_03_01_10_9.log.gz"), now - 3000,
+                line("h1", now - 9000), line("h4", now - 6000));
+        backup(logs.resolve("hello_2021_03_01_10_10.log"), now - 2000,
+                line("h5", now - 5000), line("h8", now - 2000));
+        backup(logs.resolve("greengrass_2021_03_01_10_0.log"), now - 1000,
+                line("g2", now - 8000), line("g3", now - 7000),
+                line("g6", now - 4000), line("g7", now - 3000));
+        backup(logs.resolve("greengrass_2021_02_01_10_0.log"), now - 100000,
+                line("skipped", now - 8500));
+        TemplateCommand tc = new TemplateCommand();
+        tc.rootPath = root.toString();
+        Watcher w = new Watcher(tc);
+        w.filter.since = now - 10000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w.sink = new LogSink(out, LogSink.formatter("json"));
+        try {
+            w.backfill();
+            List<String> services = new ArrayList<>();
+            Matcher m = Pattern.compile("\"service\":\"([^\"]*)\"")
+                    .matcher(new String(out.toByteArray(), StandardCharsets.UTF_8));
+            while (m.find())
+                services.add(m.group(1));
+            Assertions.assertEquals(Arrays.asList("h1", "g2", "g3", "h4", "h5",
+                    "g6", "g7", "h8"), services);
+        } finally {
+            Utils.deleteFileRecursively(root.toFile());
+        }
+    }
+    static void backup(Path p, long mtime, byte[]... lines) throws IOException {
+        try (OutputStream o = p.toString().endsWith(".gz")
+                ? new GZIPOutputStream(Files.newOutputStream(p))
+                : Files.newOutputStream(p)) {
+            for (byte[] l : lines)
+                o.write(l);
+        }
+        Files.setLastModifiedTime(p, FileTime.fromMillis(mtime));
+    }
+    static byte[] line(String service, long ts) {
+        return ("{\"level\":\"INFO\",\"eventType\":\"stdout\",\"message\":\"hi\","
+                + "\"contexts\":{\"serviceName\":\"" + service + "\"},\"timestamp\":"
+                + ts + "}\n").getBytes(StandardCharsets.UTF_8);
+    }
 }